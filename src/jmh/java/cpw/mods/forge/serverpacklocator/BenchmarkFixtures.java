@@ -0,0 +1,53 @@
+package cpw.mods.forge.serverpacklocator;
+
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic inputs shared by the benchmarks, which do not need a running mod loader.
+ */
+public final class BenchmarkFixtures {
+    private static final int ENTRY_SIZE = 16 * 1024;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Writes a jar of roughly the given size, filled with incompressible entries like the classes and assets of a
+     * real mod.
+     */
+    public static Path createJar(final Path path, final long size, final long seed) throws IOException {
+        final Random random = new Random(seed);
+        final byte[] entry = new byte[ENTRY_SIZE];
+        try (final OutputStream output = Files.newOutputStream(path); final ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.setLevel(0);
+            for (long written = 0, index = 0; written < size; written += ENTRY_SIZE, index++) {
+                random.nextBytes(entry);
+                zip.putNextEntry(new ZipEntry("data/" + index + ".bin"));
+                zip.write(entry, 0, (int) Math.min(entry.length, size - written));
+                zip.closeEntry();
+            }
+        }
+        return path;
+    }
+
+    public static PackEntry modFile(final Path path, final String modId, final String version) {
+        return new PackEntry(path, modId, new DefaultArtifactVersion(version));
+    }
+
+    public static void deleteRecursively(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            for (final Path path : files.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
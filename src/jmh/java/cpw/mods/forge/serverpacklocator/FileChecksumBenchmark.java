@@ -0,0 +1,75 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing throughput over jars of typical mod sizes. The files stay in the page cache after the first iteration, so
+ * this measures the hashing itself rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileChecksumBenchmark {
+    private static final int PARALLEL_FILES = 32;
+
+    @Param({"65536", "1048576", "33554432"})
+    public long size;
+
+    private Path directory;
+    private Path jar;
+    private List<Path> jars;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("spl-hash-bench");
+        jar = BenchmarkFixtures.createJar(directory.resolve("single.jar"), size, 0);
+        jars = new ArrayList<>();
+        for (int i = 0; i < PARALLEL_FILES; i++) {
+            jars.add(BenchmarkFixtures.createJar(directory.resolve("mod-" + i + ".jar"), size, i + 1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public HashCode hashSingleFile() {
+        return FileChecksumValidator.computeChecksumFor(jar);
+    }
+
+    @Benchmark
+    public HashCode fastHashSingleFile() {
+        return FileChecksumValidator.computeHashFor(jar, HashAlgorithm.FAST);
+    }
+
+    @Benchmark
+    public Map<Path, HashCode> hashFilesInParallel() {
+        return FileChecksumValidator.computeChecksumsFor(jars).join();
+    }
+}
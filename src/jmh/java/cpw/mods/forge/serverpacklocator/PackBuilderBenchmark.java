@@ -0,0 +1,60 @@
+package cpw.mods.forge.serverpacklocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting the newest version of each mod, with every mod present in several versions as happens when old jars are
+ * left behind in servermods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackBuilderBenchmark {
+    @Param({"100", "1000"})
+    public int mods;
+
+    @Param({"1", "5"})
+    public int versionsPerMod;
+
+    private final PackBuilder packBuilder = new PackBuilder(Set.of("excluded_0", "excluded_1"));
+    private List<PackEntry> files;
+
+    @Setup
+    public void setup() {
+        files = new ArrayList<>();
+        for (int mod = 0; mod < mods; mod++) {
+            for (int version = 0; version < versionsPerMod; version++) {
+                final String fileVersion = "1." + version + "." + (mod % 7);
+                files.add(BenchmarkFixtures.modFile(Path.of("mod_" + mod + "-" + fileVersion + ".jar"), "mod_" + mod, fileVersion));
+            }
+        }
+        files.add(BenchmarkFixtures.modFile(Path.of("excluded_0.jar"), "excluded_0", "1.0"));
+        Collections.shuffle(files, new Random(0));
+    }
+
+    @Benchmark
+    public List<PackEntry> buildModList() {
+        return packBuilder.buildModList(files);
+    }
+}
@@ -0,0 +1,63 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.mojang.serialization.DataResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the manifest, as done by the server on every rebuild and by the client on every launch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerManifestBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int entries;
+
+    private ServerManifest manifest;
+    private String json;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        final ServerManifest.Builder builder = new ServerManifest.Builder();
+        final byte[] checksum = new byte[32];
+        for (int i = 0; i < entries; i++) {
+            random.nextBytes(checksum);
+            builder.add("mod_" + i, HashCode.fromBytes(checksum.clone()), "mod_" + i + "-1.21-" + i + ".0.0.jar", random.nextInt(50_000_000));
+        }
+        manifest = builder.build();
+        json = manifest.toJson();
+    }
+
+    @Benchmark
+    public String encode() {
+        return manifest.toJson();
+    }
+
+    @Benchmark
+    public DataResult<ServerManifest> decode() {
+        return ServerManifest.parse(json);
+    }
+
+    @Benchmark
+    public HashCode hash() {
+        return ServerManifest.hash(json);
+    }
+}
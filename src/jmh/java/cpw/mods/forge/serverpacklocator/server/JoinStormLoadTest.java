@@ -0,0 +1,337 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.BenchmarkFixtures;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.PackEntry;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates many clients joining at once, as after a server restart, against a real {@link SimpleHttpServer} on
+ * loopback. Every client fetches the manifest and then all of its files, a few at a time like the real client does.
+ * <p>
+ * Arguments are {@code key=value} pairs: {@code clients}, {@code files}, {@code fileSizeKb}, {@code downloadsPerClient},
+ * {@code tls} (one of {@code off}, {@code on} or {@code both}), the server's {@code threads} and
+ * {@code nativeTransport}, and the transfer limits {@code globalBandwidthKb}, {@code connectionBandwidthKb} and
+ * {@code maxConcurrentTransfers}. Exits with status 1 if any request failed, so that
+ * it can guard the serving path in CI.
+ */
+public final class JoinStormLoadTest {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(2);
+
+    private JoinStormLoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        // The self-signed certificate is only valid for localhost, and we connect by address
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+
+        final Map<String, String> options = parseOptions(args);
+        final int clients = Integer.parseInt(options.getOrDefault("clients", "100"));
+        final int files = Integer.parseInt(options.getOrDefault("files", "200"));
+        final long fileSize = Long.parseLong(options.getOrDefault("fileSizeKb", "512")) * 1024;
+        final int downloadsPerClient = Integer.parseInt(options.getOrDefault("downloadsPerClient", "6"));
+        final String tls = options.getOrDefault("tls", "both");
+        final TransferLimiter.Limits limits = new TransferLimiter.Limits(
+                Long.parseLong(options.getOrDefault("globalBandwidthKb", "0")) * 1024,
+                Long.parseLong(options.getOrDefault("connectionBandwidthKb", "0")) * 1024,
+                Integer.parseInt(options.getOrDefault("maxConcurrentTransfers", "0")),
+                TransferLimiter.Limits.UNLIMITED.retryAfterSeconds()
+        );
+        final SimpleHttpServer.Options defaults = SimpleHttpServer.Options.DEFAULT;
+        final SimpleHttpServer.Options serverOptions = new SimpleHttpServer.Options(
+                Boolean.parseBoolean(options.getOrDefault("nativeTransport", String.valueOf(defaults.nativeTransport()))),
+                Integer.parseInt(options.getOrDefault("threads", String.valueOf(defaults.childThreads()))),
+                defaults.backlog(), defaults.tcpNoDelay(), defaults.tcpCork(),
+                defaults.writeBufferLowWaterMark(), defaults.writeBufferHighWaterMark(), defaults.idleTimeoutSeconds()
+        );
+
+        final Path directory = Files.createTempDirectory("spl-join-storm");
+        try {
+            System.out.printf("Generating %d files of %d KiB%n", files, fileSize / 1024);
+            final List<PackEntry> modFiles = new ArrayList<>();
+            for (int i = 0; i < files; i++) {
+                final Path jar = BenchmarkFixtures.createJar(directory.resolve("mod_" + i + "-1.0.jar"), fileSize, i);
+                modFiles.add(BenchmarkFixtures.modFile(jar, "mod_" + i, "1.0"));
+            }
+
+            boolean failed = false;
+            if (!tls.equals("on")) {
+                failed |= run(directory, modFiles, serverOptions, limits, clients, downloadsPerClient, false);
+            }
+            if (!tls.equals("off")) {
+                failed |= run(directory, modFiles, serverOptions, limits, clients, downloadsPerClient, true);
+            }
+            System.exit(failed ? 1 : 0);
+        } finally {
+            BenchmarkFixtures.deleteRecursively(directory);
+        }
+    }
+
+    private static boolean run(final Path directory, final List<PackEntry> modFiles, final SimpleHttpServer.Options serverOptions, final TransferLimiter.Limits limits, final int clients, final int downloadsPerClient, final boolean tls) throws Exception {
+        final ServerMetrics metrics = new ServerMetrics();
+        final ServerFileManager fileManager = new ServerFileManager(directory.resolve("servermanifest.json"), ChecksumCache.load(directory.resolve("checksums.json")), null, null, null, metrics);
+        fileManager.buildManifest(modFiles);
+
+        final SelfSignedCertificate certificate = tls ? new SelfSignedCertificate("localhost") : null;
+        final SslContext serverSslContext = certificate != null ? SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey()).build() : null;
+        final SSLContext clientSslContext = certificate != null ? trusting(certificate) : null;
+
+        final Channel server = SimpleHttpServer.run(fileManager, metrics, new TransferLimiter(limits), 0, serverSslContext, null, serverOptions);
+        final int port = ((InetSocketAddress) server.localAddress()).getPort();
+        final String baseUri = (tls ? "https" : "http") + "://127.0.0.1:" + port;
+
+        final Stats stats = new Stats();
+        final GcSnapshot gcBefore = GcSnapshot.take();
+        resetPeakHeap();
+
+        System.out.printf("%nStarting %d clients with TLS %s%n", clients, tls ? "on" : "off");
+        final long startTime = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(clients);
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                executor.execute(() -> {
+                    try {
+                        simulateClient(baseUri, clientSslContext, downloadsPerClient, stats);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+        final GcSnapshot gcAfter = GcSnapshot.take();
+
+        server.close().syncUninterruptibly();
+        if (certificate != null) {
+            certificate.delete();
+        }
+
+        stats.report(clients, elapsedNanos);
+        System.out.printf("Peak heap:       %.1f MiB%n", peakHeap() / (1024.0 * 1024.0));
+        System.out.printf("GC:              %d collections, %d ms%n", gcAfter.count() - gcBefore.count(), gcAfter.millis() - gcBefore.millis());
+        return stats.errors.get() > 0;
+    }
+
+    private static void simulateClient(final String baseUri, @Nullable final SSLContext sslContext, final int downloadsPerClient, final Stats stats) {
+        final long startTime = System.nanoTime();
+        final HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor());
+        if (sslContext != null) {
+            clientBuilder.sslContext(sslContext);
+        }
+        try (final HttpClient client = clientBuilder.build()) {
+            final String manifestJson;
+            final long manifestStart = System.nanoTime();
+            try {
+                final HttpResponse<String> response = client.send(request(baseUri + "/servermanifest.json"), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) {
+                    throw new IOException("Unexpected status " + response.statusCode() + " for manifest");
+                }
+                manifestJson = response.body();
+            } catch (final IOException | InterruptedException e) {
+                stats.recordError("manifest", e);
+                return;
+            }
+            stats.manifestLatencies.add(System.nanoTime() - manifestStart);
+            stats.requests.incrementAndGet();
+
+            final ServerManifest manifest = ServerManifest.parse(manifestJson).result().orElseThrow();
+            final Queue<ServerManifest.ModFileData> remaining = new ConcurrentLinkedQueue<>(manifest.files());
+            final CountDownLatch downloaded = new CountDownLatch(downloadsPerClient);
+            for (int i = 0; i < downloadsPerClient; i++) {
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        ServerManifest.ModFileData file;
+                        while ((file = remaining.poll()) != null) {
+                            downloadFile(client, baseUri, file, stats);
+                        }
+                    } finally {
+                        downloaded.countDown();
+                    }
+                });
+            }
+            downloaded.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        stats.clientLatencies.add(System.nanoTime() - startTime);
+    }
+
+    private static void downloadFile(final HttpClient client, final String baseUri, final ServerManifest.ModFileData file, final Stats stats) {
+        final long startTime = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response;
+            long received;
+            while (true) {
+                response = client.send(request(baseUri + "/files/" + URLEncoder.encode(file.fileName(), StandardCharsets.UTF_8)), HttpResponse.BodyHandlers.ofInputStream());
+                try (final InputStream body = response.body()) {
+                    received = body.transferTo(OutputStream.nullOutputStream());
+                }
+                if (response.statusCode() != 503) {
+                    break;
+                }
+                // Turned away by the transfer limit: wait as told, spread out so that clients do not all return at once
+                stats.busy.incrementAndGet();
+                final long retryAfterMillis = response.headers().firstValueAsLong("Retry-After").orElse(1) * 1000;
+                Thread.sleep(retryAfterMillis + ThreadLocalRandom.current().nextLong(retryAfterMillis / 2 + 1));
+            }
+            if (response.statusCode() != 200 || received != file.size()) {
+                throw new IOException("Unexpected status " + response.statusCode() + " with " + received + " bytes for " + file.fileName());
+            }
+            stats.bytes.addAndGet(received);
+        } catch (final IOException | InterruptedException e) {
+            stats.recordError("file", e);
+            return;
+        }
+        stats.fileLatencies.add(System.nanoTime() - startTime);
+        stats.requests.incrementAndGet();
+    }
+
+    private static HttpRequest request(final String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(REQUEST_TIMEOUT).GET().build();
+    }
+
+    private static SSLContext trusting(final SelfSignedCertificate certificate) throws Exception {
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", certificate.cert());
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator == -1) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private record GcSnapshot(long count, long millis) {
+        static GcSnapshot take() {
+            long count = 0;
+            long millis = 0;
+            for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(collector.getCollectionCount(), 0);
+                millis += Math.max(collector.getCollectionTime(), 0);
+            }
+            return new GcSnapshot(count, millis);
+        }
+    }
+
+    private static final class Stats {
+        final Queue<Long> manifestLatencies = new ConcurrentLinkedQueue<>();
+        final Queue<Long> fileLatencies = new ConcurrentLinkedQueue<>();
+        final Queue<Long> clientLatencies = new ConcurrentLinkedQueue<>();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+        private final AtomicInteger loggedErrors = new AtomicInteger();
+
+        void recordError(final String kind, final Exception e) {
+            errors.incrementAndGet();
+            // Enough to see what went wrong without flooding the output when everything fails
+            if (loggedErrors.incrementAndGet() <= 5) {
+                System.out.println("Failed " + kind + " request: " + e);
+            }
+        }
+
+        void report(final int clients, final long elapsedNanos) {
+            final double seconds = elapsedNanos / 1e9;
+            final long total = requests.get() + errors.get();
+            System.out.printf("Elapsed:         %.2f s%n", seconds);
+            System.out.printf("Clients synced:  %d of %d%n", clientLatencies.size(), clients);
+            System.out.printf("Requests:        %d (%.1f/s)%n", requests.get(), requests.get() / seconds);
+            System.out.printf("Throughput:      %.1f MiB/s%n", bytes.get() / (1024.0 * 1024.0) / seconds);
+            System.out.printf("Errors:          %d (%.2f%%)%n", errors.get(), total > 0 ? 100.0 * errors.get() / total : 0.0);
+            System.out.printf("Turned away:     %d%n", busy.get());
+            printPercentiles("Manifest", manifestLatencies);
+            printPercentiles("File", fileLatencies);
+            printPercentiles("Full sync", clientLatencies);
+        }
+
+        private static void printPercentiles(final String label, final Queue<Long> latencies) {
+            final List<Long> sorted = new ArrayList<>(latencies);
+            if (sorted.isEmpty()) {
+                System.out.printf("%-16s no samples%n", label + ":");
+                return;
+            }
+            Collections.sort(sorted);
+            System.out.printf("%-16s p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n", label + ":",
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), sorted.getLast() / 1e6);
+        }
+
+        private static double percentile(final List<Long> sorted, final double percentile) {
+            final int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+            return sorted.get(Math.max(index, 0)) / 1e6;
+        }
+    }
+}
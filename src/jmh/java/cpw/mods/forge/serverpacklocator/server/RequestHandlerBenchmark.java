@@ -0,0 +1,109 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.BenchmarkFixtures;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.PackEntry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request handling cost without any networking, by driving the handler through an {@link EmbeddedChannel}. File bodies
+ * are sent as file regions, so these numbers cover routing, lookups and header generation rather than copying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHandlerBenchmark {
+    private static final long FILE_SIZE = 64 * 1024;
+
+    @Param({"100", "1000"})
+    public int files;
+
+    private Path directory;
+    private EmbeddedChannel channel;
+    private String manifestETag;
+    private List<String> fileUris;
+    private int nextFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("spl-request-bench");
+        final List<PackEntry> modFiles = new ArrayList<>();
+        fileUris = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            final String fileName = "mod_" + i + "-1.0.jar";
+            final Path jar = BenchmarkFixtures.createJar(directory.resolve(fileName), FILE_SIZE, i);
+            modFiles.add(BenchmarkFixtures.modFile(jar, "mod_" + i, "1.0"));
+            fileUris.add("/files/" + fileName);
+        }
+
+        final ServerMetrics metrics = new ServerMetrics();
+        final ServerFileManager fileManager = new ServerFileManager(directory.resolve("servermanifest.json"), ChecksumCache.load(directory.resolve("checksums.json")), null, null, null, metrics);
+        fileManager.buildManifest(modFiles);
+        manifestETag = "\"" + fileManager.getSnapshot().hash() + "\"";
+
+        channel = new EmbeddedChannel(new ChunkedWriteHandler(), new RequestHandler(fileManager, metrics, new TransferLimiter(TransferLimiter.Limits.UNLIMITED), null));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.finishAndReleaseAll();
+        BenchmarkFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public boolean manifest() {
+        return exchange(request("/servermanifest.json"));
+    }
+
+    @Benchmark
+    public boolean manifestNotModified() {
+        final FullHttpRequest request = request("/servermanifest.json");
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, manifestETag);
+        return exchange(request);
+    }
+
+    @Benchmark
+    public boolean file() {
+        final String uri = fileUris.get(nextFile);
+        nextFile = (nextFile + 1) % fileUris.size();
+        return exchange(request(uri));
+    }
+
+    private static FullHttpRequest request(final String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private boolean exchange(final FullHttpRequest request) {
+        channel.writeInbound(request);
+        return channel.releaseOutbound();
+    }
+}
@@ -0,0 +1,20 @@
+package cpw.mods.forge.serverpacklocator;
+
+/**
+ * Wire format of the {@code /bundle} endpoint, which sends many small files in one response.
+ * <p>
+ * The request body lists the wanted checksums as hex, one per line. The response is a sequence of entries, each made
+ * of the raw 32-byte SHA-256 of the file, its length as a big-endian 64-bit integer, then its content. Files the server
+ * does not have are left out, and the response simply ends after the last entry.
+ */
+public final class BundleFormat {
+    public static final String PATH = "/bundle";
+    public static final String CONTENT_TYPE = "application/x-spl-bundle";
+    public static final int CHECKSUM_BYTES = 32;
+    public static final int HEADER_BYTES = CHECKSUM_BYTES + Long.BYTES;
+    // Bounds the request body, and with it how long one response can hold a connection
+    public static final int MAX_FILES = 4096;
+
+    private BundleFormat() {
+    }
+}
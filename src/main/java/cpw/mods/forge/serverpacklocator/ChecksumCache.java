@@ -0,0 +1,364 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mojang.logging.LogUtils;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Persistent index of file checksums, keyed by path and validated against the file's size, modification time and
+ * file key. Files whose stat has not changed since they were last hashed are not read again. Each file can have a hash
+ * for every {@link HashAlgorithm}, the SHA-256 checksum being the default.
+ * <p>
+ * Keys default to the absolute path of the file, but a different key function can be supplied when the index should
+ * survive its directory being moved.
+ */
+public class ChecksumCache {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Gson GSON = new Gson();
+
+    private static final Codec<Map<String, Entry>> CODEC = Codec.unboundedMap(Codec.STRING, Entry.CODEC);
+
+    private final Path path;
+    private final Function<Path, String> keyFunction;
+    private final Map<String, Entry> entries;
+    private final Set<String> accessedKeys = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+
+    private ChecksumCache(final Path path, final Function<Path, String> keyFunction, final Map<String, Entry> entries) {
+        this.path = path;
+        this.keyFunction = keyFunction;
+        this.entries = new ConcurrentHashMap<>(entries);
+    }
+
+    public static ChecksumCache load(final Path path) {
+        return load(path, file -> file.toAbsolutePath().normalize().toString());
+    }
+
+    public static ChecksumCache load(final Path path, final Function<Path, String> keyFunction) {
+        if (!Files.exists(path)) {
+            return new ChecksumCache(path, keyFunction, Map.of());
+        }
+        try (final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            final DataResult<Map<String, Entry>> result = CODEC.parse(JsonOps.INSTANCE, JsonParser.parseReader(reader));
+            final Map<String, Entry> entries = result.resultOrPartial(error -> LOGGER.warn("Discarding malformed entries in checksum cache {}: {}", path, error))
+                    .orElse(Map.of());
+            LOGGER.debug("Loaded {} entries from checksum cache {}", entries.size(), path);
+            return new ChecksumCache(path, keyFunction, entries);
+        } catch (final IOException | JsonParseException e) {
+            LOGGER.warn("Failed to read checksum cache {}, all files will be rehashed", path, e);
+            return new ChecksumCache(path, keyFunction, Map.of());
+        }
+    }
+
+    @Nullable
+    public HashCode getOrCompute(final Path file) {
+        final String key = keyFunction.apply(file);
+        final Stat stat = Stat.of(file);
+        if (stat == null) {
+            return null;
+        }
+        accessedKeys.add(key);
+
+        final Entry cached = entries.get(key);
+        if (cached != null && cached.stat().equals(stat) && cached.get(HashAlgorithm.SHA256) != null) {
+            return cached.get(HashAlgorithm.SHA256);
+        }
+
+        final HashCode checksum = FileChecksumValidator.computeChecksumFor(file);
+        if (checksum == null) {
+            evict(file);
+            return null;
+        }
+        store(file, stat, Map.of(HashAlgorithm.SHA256, checksum));
+        return checksum;
+    }
+
+    /**
+     * Looks up all the given files, hashing any that are missing or stale in parallel. Files that do not exist or could
+     * not be read are absent from the result.
+     */
+    public CompletableFuture<Map<Path, HashCode>> getOrComputeAll(final Collection<Path> files) {
+        return getOrComputeAll(files, HashAlgorithm.SHA256);
+    }
+
+    /**
+     * Looks up all the given files with the given algorithm, hashing any that are missing or stale in parallel.
+     */
+    public CompletableFuture<Map<Path, HashCode>> getOrComputeAll(final Collection<Path> files, final HashAlgorithm algorithm) {
+        return lookupAll(files, EnumSet.of(algorithm), true).thenApply(hashes -> select(hashes, algorithm));
+    }
+
+    /**
+     * Looks up all the given files with several algorithms, hashing any that are missing or stale in parallel. A file
+     * is read at most once, for all the hashes it is missing at the same time.
+     */
+    public CompletableFuture<Map<Path, Map<HashAlgorithm, HashCode>>> getOrComputeAll(final Collection<Path> files, final Set<HashAlgorithm> algorithms) {
+        return lookupAll(files, algorithms, true);
+    }
+
+    /**
+     * Always rehashes all the given files in parallel, refreshing their cache entries.
+     */
+    public CompletableFuture<Map<Path, HashCode>> computeAll(final Collection<Path> files) {
+        return lookupAll(files, EnumSet.of(HashAlgorithm.SHA256), false).thenApply(hashes -> select(hashes, HashAlgorithm.SHA256));
+    }
+
+    /**
+     * Looks up the checksums of the given files without reading any of them. Files that have changed since they were
+     * last hashed are absent from the result.
+     */
+    public Map<Path, HashCode> getAllCached(final Collection<Path> files) {
+        final Map<Path, HashCode> result = new HashMap<>();
+        for (final Path file : files) {
+            final HashCode checksum = getCached(file);
+            if (checksum != null) {
+                result.put(file, checksum);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Looks up the checksum of a file without reading it.
+     *
+     * @return the checksum, or {@code null} if the file has changed since it was last hashed
+     */
+    @Nullable
+    public HashCode getCached(final Path file) {
+        final Stat stat = Stat.of(file);
+        if (stat == null) {
+            return null;
+        }
+        final String key = keyFunction.apply(file);
+        accessedKeys.add(key);
+        final Entry cached = entries.get(key);
+        return cached != null && cached.stat().equals(stat) ? cached.get(HashAlgorithm.SHA256) : null;
+    }
+
+    private CompletableFuture<Map<Path, Map<HashAlgorithm, HashCode>>> lookupAll(final Collection<Path> files, final Set<HashAlgorithm> algorithms, final boolean trustCache) {
+        final Map<Path, Map<HashAlgorithm, HashCode>> result = new ConcurrentHashMap<>();
+        final Map<Path, Miss> misses = new HashMap<>();
+        for (final Path file : files) {
+            final String key = keyFunction.apply(file);
+            final Stat stat = Stat.of(file);
+            if (stat == null) {
+                continue;
+            }
+            accessedKeys.add(key);
+
+            final Entry cached = entries.get(key);
+            final boolean valid = trustCache && cached != null && cached.stat().equals(stat);
+            final Map<HashAlgorithm, HashCode> hashes = new EnumMap<>(HashAlgorithm.class);
+            final Set<HashAlgorithm> missing = EnumSet.noneOf(HashAlgorithm.class);
+            for (final HashAlgorithm algorithm : algorithms) {
+                final HashCode hash = valid ? cached.get(algorithm) : null;
+                if (hash != null) {
+                    hashes.put(algorithm, hash);
+                } else {
+                    missing.add(algorithm);
+                }
+            }
+            if (missing.isEmpty()) {
+                result.put(file, hashes);
+            } else {
+                misses.put(file, new Miss(stat, hashes, missing));
+            }
+        }
+        if (misses.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        final Map<Path, Set<HashAlgorithm>> missingHashes = new HashMap<>();
+        misses.forEach((file, miss) -> missingHashes.put(file, miss.missing()));
+        return FileChecksumValidator.computeHashesFor(missingHashes).thenApply(computed -> {
+            misses.forEach((file, miss) -> {
+                final Map<HashAlgorithm, HashCode> hashes = computed.get(file);
+                if (hashes != null) {
+                    store(file, miss.stat(), hashes);
+                    final Map<HashAlgorithm, HashCode> allHashes = new EnumMap<>(HashAlgorithm.class);
+                    allHashes.putAll(miss.cached());
+                    allHashes.putAll(hashes);
+                    result.put(file, allHashes);
+                } else {
+                    evict(file);
+                }
+            });
+            return result;
+        });
+    }
+
+    private static Map<Path, HashCode> select(final Map<Path, Map<HashAlgorithm, HashCode>> hashes, final HashAlgorithm algorithm) {
+        final Map<Path, HashCode> result = new HashMap<>();
+        hashes.forEach((file, fileHashes) -> result.put(file, fileHashes.get(algorithm)));
+        return result;
+    }
+
+    /**
+     * Records the checksum of a file that has already been verified, such as while it was being downloaded, so that it
+     * does not need to be read again.
+     */
+    public void put(final Path file, final HashCode checksum) {
+        final Stat stat = Stat.of(file);
+        if (stat != null) {
+            accessedKeys.add(keyFunction.apply(file));
+            store(file, stat, Map.of(HashAlgorithm.SHA256, checksum));
+        }
+    }
+
+    private void store(final Path file, final Stat stat, final Map<HashAlgorithm, HashCode> hashes) {
+        // Only trust the result if the file did not change underneath us while we were reading it
+        if (stat.equals(Stat.of(file))) {
+            final Entry entry = new Entry(stat, Map.of()).with(hashes);
+            // Other hashes stay valid as long as the content is the same, as far as we can tell
+            entries.merge(keyFunction.apply(file), entry, (existing, unused) -> existing.stat().equals(stat) && existing.agreesWith(hashes) ? existing.with(hashes) : entry);
+            dirty = true;
+        }
+    }
+
+    private void evict(final Path file) {
+        if (entries.remove(keyFunction.apply(file)) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drops entries for files that were not looked up since the last save, and writes the rest out if anything changed.
+     */
+    public void save() {
+        // Start afresh for the next save, keeping any keys that were looked up in the meantime
+        final Set<String> accessed = Set.copyOf(accessedKeys);
+        accessedKeys.removeAll(accessed);
+        if (entries.keySet().retainAll(accessed)) {
+            dirty = true;
+        }
+        if (!dirty) {
+            return;
+        }
+        final JsonElement json = CODEC.encodeStart(JsonOps.INSTANCE, Map.copyOf(entries)).result().orElseThrow();
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (final BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                GSON.toJson(json, writer);
+            }
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to save checksum cache {}", path, e);
+        }
+    }
+
+    /**
+     * A file that needs hashing.
+     *
+     * @param cached  the requested hashes that were still valid
+     * @param missing the requested algorithms that were not
+     */
+    private record Miss(Stat stat, Map<HashAlgorithm, HashCode> cached, Set<HashAlgorithm> missing) {
+    }
+
+    private record Stat(long size, long lastModified, String fileKey) {
+        @Nullable
+        static Stat of(final Path file) {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new Stat(attributes.size(), attributes.lastModifiedTime().toMillis(), Objects.toString(attributes.fileKey(), ""));
+            } catch (final IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param hashes hashes of the file by {@link HashAlgorithm#id()}
+     */
+    private record Entry(long size, long lastModified, String fileKey, Map<String, HashCode> hashes) {
+        static final Codec<Entry> CODEC = RecordCodecBuilder.create(i -> i.group(
+                Codec.LONG.fieldOf("size").forGetter(Entry::size),
+                Codec.LONG.fieldOf("lastModified").forGetter(Entry::lastModified),
+                Codec.STRING.optionalFieldOf("fileKey", "").forGetter(Entry::fileKey),
+                // The checksum keeps its own field, where older versions look for it
+                ServerManifest.ModFileData.HASH_CODE_CODEC.optionalFieldOf("checksum").forGetter(entry -> Optional.ofNullable(entry.get(HashAlgorithm.SHA256))),
+                Codec.unboundedMap(Codec.STRING, ServerManifest.ModFileData.HASH_CODE_CODEC).optionalFieldOf("hashes", Map.of()).forGetter(Entry::otherHashes)
+        ).apply(i, (size, lastModified, fileKey, checksum, hashes) -> {
+            final Map<String, HashCode> allHashes = new HashMap<>(hashes);
+            checksum.ifPresent(hash -> allHashes.put(HashAlgorithm.SHA256.id(), hash));
+            return new Entry(size, lastModified, fileKey, allHashes);
+        }));
+
+        Entry {
+            hashes = Map.copyOf(hashes);
+        }
+
+        Entry(final Stat stat, final Map<String, HashCode> hashes) {
+            this(stat.size(), stat.lastModified(), stat.fileKey(), hashes);
+        }
+
+        Stat stat() {
+            return new Stat(size, lastModified, fileKey);
+        }
+
+        @Nullable
+        HashCode get(final HashAlgorithm algorithm) {
+            return hashes.get(algorithm.id());
+        }
+
+        Entry with(final Map<HashAlgorithm, HashCode> hashes) {
+            final Map<String, HashCode> newHashes = new HashMap<>(this.hashes);
+            hashes.forEach((algorithm, hash) -> newHashes.put(algorithm.id(), hash));
+            return new Entry(size, lastModified, fileKey, newHashes);
+        }
+
+        /**
+         * @return whether none of the given hashes contradict the ones already known
+         */
+        boolean agreesWith(final Map<HashAlgorithm, HashCode> hashes) {
+            return hashes.entrySet().stream().allMatch(entry -> {
+                final HashCode previous = get(entry.getKey());
+                return previous == null || previous.equals(entry.getValue());
+            });
+        }
+
+        private Map<String, HashCode> otherHashes() {
+            final Map<String, HashCode> otherHashes = new HashMap<>(hashes);
+            otherHashes.remove(HashAlgorithm.SHA256.id());
+            return otherHashes;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Content-defined chunking of a file, used for delta sync. Chunk boundaries are picked by a gear rolling hash over the
+ * content itself, so inserting or removing bytes only changes the chunks around the edit, and unchanged parts of an
+ * updated jar produce the same chunks as the old version.
+ */
+public record ChunkIndex(List<Chunk> chunks) {
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // 14 bits gives an average of 16 KiB past the minimum; the top bits depend on the widest window of input
+    private static final long BOUNDARY_MASK = 0xFFFCL << 48;
+    private static final int CHUNK_HASH_BYTES = 16;
+
+    private static final long[] GEAR = createGearTable();
+
+    public static final Codec<ChunkIndex> CODEC = RecordCodecBuilder.create(i -> i.group(
+            Chunk.CODEC.listOf().fieldOf("chunks").forGetter(ChunkIndex::chunks)
+    ).apply(i, ChunkIndex::new));
+
+    public static ChunkIndex of(final Path file) throws IOException {
+        final List<Chunk> chunks = new ArrayList<>();
+        final MessageDigest digest = FileChecksumValidator.newDigest();
+        final byte[] buffer = new byte[1 << 20];
+
+        int length = 0;
+        long hash = 0;
+        try (final InputStream input = Files.newInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                int segmentStart = 0;
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    length++;
+                    if (length >= MAX_CHUNK_SIZE || (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+                        digest.update(buffer, segmentStart, i + 1 - segmentStart);
+                        chunks.add(new Chunk(length, truncate(digest.digest())));
+                        segmentStart = i + 1;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+                digest.update(buffer, segmentStart, read - segmentStart);
+            }
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(length, truncate(digest.digest())));
+        }
+        return new ChunkIndex(chunks);
+    }
+
+    public static DataResult<ChunkIndex> parse(final String string) {
+        return CODEC.parse(JsonOps.INSTANCE, JsonParser.parseString(string));
+    }
+
+    public String toJson() {
+        final JsonElement json = CODEC.encodeStart(JsonOps.INSTANCE, this).result().orElseThrow();
+        return json.toString();
+    }
+
+    public long size() {
+        return chunks.stream().mapToLong(Chunk::length).sum();
+    }
+
+    private static HashCode truncate(final byte[] digest) {
+        // Chunks only need to be told apart, the assembled file is always verified against its full checksum
+        return HashCode.fromBytes(Arrays.copyOf(digest, CHUNK_HASH_BYTES));
+    }
+
+    private static long[] createGearTable() {
+        // splitmix64 with a fixed seed, so that the server and every client agree on the table
+        final long[] table = new long[256];
+        long state = 0x5350_4C5F_4344_4321L;
+        for (int i = 0; i < table.length; i++) {
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    public record Chunk(int length, HashCode hash) {
+        public static final Codec<Chunk> CODEC = RecordCodecBuilder.create(i -> i.group(
+                Codec.INT.fieldOf("length").forGetter(Chunk::length),
+                ServerManifest.ModFileData.HASH_CODE_CODEC.fieldOf("hash").forGetter(Chunk::hash)
+        ).apply(i, Chunk::new));
+    }
+}
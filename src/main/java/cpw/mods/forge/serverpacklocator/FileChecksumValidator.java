@@ -1,37 +1,152 @@
 package cpw.mods.forge.serverpacklocator;
 
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mojang.logging.LogUtils;
 import org.slf4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class FileChecksumValidator {
     private static final Logger LOGGER = LogUtils.getLogger();
 
+    private static final int HASH_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 8));
+    private static final Executor EXECUTOR = Executors.newFixedThreadPool(HASH_THREADS, new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Hasher - %d")
+            .setDaemon(true)
+            .build());
+
+    // Large direct buffers rather than memory-mapping: a mapped file cannot be replaced on Windows until the mapping
+    // is garbage collected, and the client overwrites files it has just hashed
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final LongAdder HASHED_BYTES = new LongAdder();
+    private static final LongAdder HASHING_NANOS = new LongAdder();
+
     @Nullable
     public static HashCode computeChecksumFor(Path file) {
+        return computeHashFor(file, HashAlgorithm.SHA256);
+    }
+
+    @Nullable
+    public static HashCode computeHashFor(final Path file, final HashAlgorithm algorithm) {
+        final Map<HashAlgorithm, HashCode> hashes = computeHashesFor(file, EnumSet.of(algorithm));
+        return hashes != null ? hashes.get(algorithm) : null;
+    }
+
+    /**
+     * Hashes a file with several algorithms at once, reading it only once.
+     *
+     * @return the hashes by algorithm, or {@code null} if the file does not exist or could not be read
+     */
+    @Nullable
+    public static Map<HashAlgorithm, HashCode> computeHashesFor(final Path file, final Set<HashAlgorithm> algorithms) {
         if (!Files.exists(file)) {
             return null;
         }
-        Hasher hasher = Hashing.sha256().newHasher();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
-            while (channel.read(buffer) > 0) {
-                hasher.putBytes(buffer.rewind());
-                buffer.rewind();
+        final long startTime = System.nanoTime();
+        final Map<HashAlgorithm, HashAlgorithm.Digest> digests = new EnumMap<>(HashAlgorithm.class);
+        algorithms.forEach(algorithm -> digests.put(algorithm, algorithm.newDigest()));
+        final ByteBuffer buffer = BUFFER.get().clear();
+        long size = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                buffer.flip();
+                for (final HashAlgorithm.Digest digest : digests.values()) {
+                    digest.update(buffer.duplicate());
+                }
+                buffer.clear();
+                size += read;
             }
         } catch (IOException e) {
             LOGGER.warn("Failed to compute hash for {}", file, e);
             return null;
         }
-        return hasher.hash();
+        HASHED_BYTES.add(size);
+        HASHING_NANOS.add(System.nanoTime() - startTime);
+        final Map<HashAlgorithm, HashCode> hashes = new EnumMap<>(HashAlgorithm.class);
+        digests.forEach((algorithm, digest) -> hashes.put(algorithm, digest.finish()));
+        return hashes;
+    }
+
+    /**
+     * Hashes all the given files in parallel. Files that do not exist or could not be read are absent from the result.
+     */
+    public static CompletableFuture<Map<Path, HashCode>> computeChecksumsFor(final Collection<Path> files) {
+        return computeHashesFor(files, HashAlgorithm.SHA256);
+    }
+
+    /**
+     * Hashes all the given files in parallel with the given algorithm. Files that do not exist or could not be read are
+     * absent from the result.
+     */
+    public static CompletableFuture<Map<Path, HashCode>> computeHashesFor(final Collection<Path> files, final HashAlgorithm algorithm) {
+        final Map<Path, Set<HashAlgorithm>> algorithms = new HashMap<>();
+        files.forEach(file -> algorithms.put(file, EnumSet.of(algorithm)));
+        return computeHashesFor(algorithms).thenApply(hashes -> {
+            final Map<Path, HashCode> result = new HashMap<>();
+            hashes.forEach((file, fileHashes) -> result.put(file, fileHashes.get(algorithm)));
+            return result;
+        });
+    }
+
+    /**
+     * Hashes each of the given files in parallel with its own set of algorithms, reading every file only once. Files
+     * that do not exist or could not be read are absent from the result.
+     */
+    public static CompletableFuture<Map<Path, Map<HashAlgorithm, HashCode>>> computeHashesFor(final Map<Path, Set<HashAlgorithm>> files) {
+        final Map<Path, Map<HashAlgorithm, HashCode>> hashes = new ConcurrentHashMap<>();
+        final CompletableFuture<?>[] futures = files.entrySet().stream()
+                .map(entry -> CompletableFuture.runAsync(() -> {
+                    final Map<HashAlgorithm, HashCode> fileHashes = computeHashesFor(entry.getKey(), entry.getValue());
+                    if (fileHashes != null) {
+                        hashes.put(entry.getKey(), fileHashes);
+                    }
+                }, EXECUTOR))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures).thenApply(unused -> hashes);
+    }
+
+    /**
+     * @return the total number of bytes hashed from files since startup
+     */
+    public static long hashedBytes() {
+        return HASHED_BYTES.sum();
+    }
+
+    /**
+     * @return the total time spent hashing files since startup, summed across threads
+     */
+    public static long hashingNanos() {
+        return HASHING_NANOS.sum();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
     }
 }
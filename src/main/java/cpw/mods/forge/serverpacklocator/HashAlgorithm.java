@@ -0,0 +1,67 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Algorithms that manifest entries can be hashed with. SHA-256 is the integrity check every file is verified against
+ * when it is installed. The others are much faster but not cryptographic, and only serve to tell whether a file on
+ * disk has changed.
+ */
+public enum HashAlgorithm {
+    SHA256("sha256") {
+        @Override
+        public Digest newDigest() {
+            final MessageDigest digest = FileChecksumValidator.newDigest();
+            return new Digest() {
+                @Override
+                public void update(final ByteBuffer input) {
+                    digest.update(input);
+                }
+
+                @Override
+                public HashCode finish() {
+                    return HashCode.fromBytes(digest.digest());
+                }
+            };
+        }
+    },
+    XXH64("xxh64") {
+        @Override
+        public Digest newDigest() {
+            return new XxHash64();
+        }
+    };
+
+    /**
+     * The fast hash that servers publish, and clients use to check files that changed on disk since they were last
+     * verified.
+     */
+    public static final HashAlgorithm FAST = XXH64;
+
+    private final String id;
+
+    HashAlgorithm(final String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the key this algorithm is stored under in manifests and caches
+     */
+    public String id() {
+        return id;
+    }
+
+    public abstract Digest newDigest();
+
+    public interface Digest {
+        /**
+         * Consumes all the remaining bytes of the buffer.
+         */
+        void update(ByteBuffer input);
+
+        HashCode finish();
+    }
+}
@@ -0,0 +1,95 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
+import com.mojang.serialization.JsonOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes between two generations of a manifest, so that a client with an older manifest does not need to fetch
+ * the whole new one. Entries are identified by file name: a file that keeps its name but not its content is changed,
+ * anything else is added or removed.
+ *
+ * @param base   hash of the manifest the diff applies to
+ * @param target hash of the manifest that applying the diff produces
+ */
+public record ManifestDiff(HashCode base, HashCode target, List<ServerManifest.ModFileData> added, List<ServerManifest.ModFileData> changed, List<String> removed) {
+    public static final String PATH = "/servermanifest/diff/";
+
+    public static final Codec<ManifestDiff> CODEC = RecordCodecBuilder.create(i -> i.group(
+            ServerManifest.ModFileData.HASH_CODE_CODEC.fieldOf("base").forGetter(ManifestDiff::base),
+            ServerManifest.ModFileData.HASH_CODE_CODEC.fieldOf("target").forGetter(ManifestDiff::target),
+            ServerManifest.ModFileData.CODEC.listOf().fieldOf("added").forGetter(ManifestDiff::added),
+            ServerManifest.ModFileData.CODEC.listOf().fieldOf("changed").forGetter(ManifestDiff::changed),
+            Codec.STRING.listOf().fieldOf("removed").forGetter(ManifestDiff::removed)
+    ).apply(i, ManifestDiff::new));
+
+    public static ManifestDiff between(final HashCode baseHash, final ServerManifest base, final HashCode targetHash, final ServerManifest target) {
+        final Map<String, ServerManifest.ModFileData> baseFiles = byName(base);
+        final List<ServerManifest.ModFileData> added = new ArrayList<>();
+        final List<ServerManifest.ModFileData> changed = new ArrayList<>();
+        for (final ServerManifest.ModFileData file : target.files()) {
+            final ServerManifest.ModFileData baseFile = baseFiles.remove(file.fileName());
+            if (baseFile == null) {
+                added.add(file);
+            } else if (!baseFile.equals(file)) {
+                changed.add(file);
+            }
+        }
+        return new ManifestDiff(baseHash, targetHash, added, changed, List.copyOf(baseFiles.keySet()));
+    }
+
+    /**
+     * @return the target manifest, or an error if the base does not have the files the diff expects
+     */
+    public DataResult<ServerManifest> applyTo(final ServerManifest base) {
+        final Map<String, ServerManifest.ModFileData> files = byName(base);
+        for (final String fileName : removed) {
+            if (files.remove(fileName) == null) {
+                return DataResult.error(() -> "Removed file " + fileName + " is not in the base manifest");
+            }
+        }
+        for (final ServerManifest.ModFileData file : changed) {
+            if (files.put(file.fileName(), file) == null) {
+                return DataResult.error(() -> "Changed file " + file.fileName() + " is not in the base manifest");
+            }
+        }
+        for (final ServerManifest.ModFileData file : added) {
+            if (files.put(file.fileName(), file) != null) {
+                return DataResult.error(() -> "Added file " + file.fileName() + " is already in the base manifest");
+            }
+        }
+        final ServerManifest.Builder builder = new ServerManifest.Builder();
+        files.values().forEach(builder::add);
+        return DataResult.success(builder.build());
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    public static DataResult<ManifestDiff> parse(final String string) {
+        return CODEC.parse(JsonOps.INSTANCE, JsonParser.parseString(string));
+    }
+
+    public String toJson() {
+        final JsonElement json = CODEC.encodeStart(JsonOps.INSTANCE, this).result().orElseThrow();
+        return json.toString();
+    }
+
+    private static Map<String, ServerManifest.ModFileData> byName(final ServerManifest manifest) {
+        final Map<String, ServerManifest.ModFileData> files = new LinkedHashMap<>();
+        for (final ServerManifest.ModFileData file : manifest.files()) {
+            files.putIfAbsent(file.fileName(), file);
+        }
+        return files;
+    }
+}
@@ -1,9 +1,6 @@
 package cpw.mods.forge.serverpacklocator;
 
 import com.mojang.logging.LogUtils;
-import net.neoforged.neoforgespi.language.IModInfo;
-import net.neoforged.neoforgespi.locating.IModFile;
-import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.slf4j.Logger;
 
 import java.util.Comparator;
@@ -22,13 +19,8 @@ public class PackBuilder {
         this.excludedModIds = excludedModIds;
     }
 
-    public static String getRootModId(final IModFile modFile) {
-        final List<IModInfo> modInfos = modFile.getModInfos();
-        return modFile.getType() == IModFile.Type.MOD && !modInfos.isEmpty() ? modInfos.getFirst().getModId() : modFile.getFileName();
-    }
-
-    public List<IModFile> buildModList(final List<IModFile> files) {
-        final Map<String, List<IModFile>> filesByRootId = files.stream().collect(Collectors.groupingBy(PackBuilder::getRootModId));
+    public List<PackEntry> buildModList(final List<PackEntry> files) {
+        final Map<String, List<PackEntry>> filesByRootId = files.stream().collect(Collectors.groupingBy(PackEntry::rootModId));
         excludedModIds.forEach(filesByRootId::remove);
 
         return filesByRootId.entrySet().stream()
@@ -36,27 +28,23 @@ public class PackBuilder {
                 .toList();
     }
 
-    private Stream<IModFile> selectNewest(final Map.Entry<String, List<IModFile>> entry) {
-        List<IModFile> files = entry.getValue();
+    private Stream<PackEntry> selectNewest(final Map.Entry<String, List<PackEntry>> entry) {
+        List<PackEntry> files = entry.getValue();
         if (files.isEmpty()) {
             return Stream.empty();
         } else if (files.size() == 1) {
             return Stream.of(files.getFirst());
         }
-        if (!files.stream().allMatch(file -> file.getType() == IModFile.Type.MOD)) {
+        if (!files.stream().allMatch(file -> file.version() != null)) {
             return files.stream();
         }
 
         LOGGER.debug("Selecting newest by artifact version for modid {}", entry.getKey());
-        IModFile newestFile = files.stream()
-                .max(Comparator.comparing(PackBuilder::getRootVersion))
+        PackEntry newestFile = files.stream()
+                .max(Comparator.comparing(PackEntry::version))
                 .orElseThrow();
-        LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", entry.getKey(), newestFile.getFileName(), getRootVersion(newestFile));
+        LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", entry.getKey(), newestFile.fileName(), newestFile.version());
         return Stream.of(newestFile);
     }
 
-    private static ArtifactVersion getRootVersion(IModFile file) {
-        return file.getModInfos().getFirst().getVersion();
-    }
-
 }
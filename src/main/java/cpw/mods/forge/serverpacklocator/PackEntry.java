@@ -0,0 +1,83 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+import com.electronwill.nightconfig.core.Config;
+import com.electronwill.nightconfig.core.io.ParsingException;
+import com.electronwill.nightconfig.toml.TomlParser;
+import net.neoforged.neoforgespi.language.IModInfo;
+import net.neoforged.neoforgespi.locating.IModFile;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * What the pack needs to know about a jar: the id of its first mod, which decides which of several versions of a mod
+ * is shared, and that mod's version. Files that are not mods, such as libraries, have no version and are known by
+ * their file name.
+ */
+public record PackEntry(Path path, String rootModId, @Nullable ArtifactVersion version) {
+    private static final String MODS_TOML = "META-INF/neoforge.mods.toml";
+    // The same placeholder and fallbacks as the mod loader
+    private static final String JAR_VERSION_PLACEHOLDER = "${file.jarVersion}";
+    private static final String DEFAULT_VERSION = "1";
+    private static final String MISSING_JAR_VERSION = "0.0NONE";
+
+    public static PackEntry of(final IModFile file) {
+        final List<IModInfo> modInfos = file.getModInfos();
+        if (file.getType() == IModFile.Type.MOD && !modInfos.isEmpty()) {
+            return new PackEntry(file.getFilePath(), modInfos.getFirst().getModId(), modInfos.getFirst().getVersion());
+        }
+        return new PackEntry(file.getFilePath(), file.getFileName(), null);
+    }
+
+    /**
+     * Reads a jar's metadata directly rather than through mod discovery, for jars that are only served and never
+     * loaded. The jar is closed again straight away, so that it can be replaced or removed while the server runs.
+     */
+    public static PackEntry read(final Path path) throws IOException {
+        final String fileName = path.getFileName().toString();
+        try (final JarFile jar = new JarFile(path.toFile())) {
+            final JarEntry modsToml = jar.getJarEntry(MODS_TOML);
+            if (modsToml == null) {
+                return new PackEntry(path, fileName, null);
+            }
+            final CommentedConfig config;
+            try (final Reader reader = new InputStreamReader(jar.getInputStream(modsToml), StandardCharsets.UTF_8)) {
+                config = new TomlParser().parse(reader);
+            } catch (final ParsingException e) {
+                throw new IOException("Malformed " + MODS_TOML + " in " + fileName, e);
+            }
+            final List<Config> mods = config.get("mods");
+            if (mods == null || mods.isEmpty()) {
+                return new PackEntry(path, fileName, null);
+            }
+            final Config mod = mods.getFirst();
+            final String modId = mod.get("modId");
+            if (modId == null) {
+                throw new IOException("First mod in " + MODS_TOML + " of " + fileName + " has no modId");
+            }
+            String version = mod.getOrElse("version", DEFAULT_VERSION);
+            if (version.equals(JAR_VERSION_PLACEHOLDER)) {
+                final Manifest manifest = jar.getManifest();
+                final String jarVersion = manifest != null ? manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_VERSION) : null;
+                version = jarVersion != null ? jarVersion : MISSING_JAR_VERSION;
+            }
+            return new PackEntry(path, modId, new DefaultArtifactVersion(version));
+        }
+    }
+
+    public String fileName() {
+        return path.getFileName().toString();
+    }
+}
@@ -1,7 +1,9 @@
 package cpw.mods.forge.serverpacklocator;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -11,6 +13,7 @@ import com.mojang.serialization.DataResult;
 import com.mojang.serialization.JsonOps;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 
+import javax.annotation.Nullable;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -18,8 +21,10 @@ import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public record ServerManifest(List<ModFileData> files) {
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
@@ -33,6 +38,13 @@ public record ServerManifest(List<ModFileData> files) {
         return CODEC.parse(JsonOps.INSTANCE, json);
     }
 
+    /**
+     * Hashes the serialised form of a manifest, as served to clients.
+     */
+    public static HashCode hash(final String json) {
+        return Hashing.sha256().hashString(json, StandardCharsets.UTF_8);
+    }
+
     public String toJson() {
         JsonElement json = CODEC.encodeStart(JsonOps.INSTANCE, this).result().orElseThrow();
         return GSON.toJson(json);
@@ -54,8 +66,14 @@ public record ServerManifest(List<ModFileData> files) {
         }
     }
 
-    public record ModFileData(String rootModId, HashCode checksum, String fileName) {
-        private static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.comapFlatMap(
+    /**
+     * @param checksum the SHA-256 of the file, which every copy is verified against when it is installed
+     * @param size     the file size in bytes, or {@code 0} if it was not recorded by the server
+     * @param hashes   further hashes of the file by {@link HashAlgorithm#id()}, which may include algorithms this
+     *                 version does not know about. Older servers publish none.
+     */
+    public record ModFileData(String rootModId, HashCode checksum, String fileName, long size, Map<String, HashCode> hashes) {
+        static final Codec<HashCode> HASH_CODE_CODEC = Codec.STRING.comapFlatMap(
                 string -> {
                     try {
                         return DataResult.success(HashCode.fromString(string.toLowerCase(Locale.ROOT)));
@@ -69,20 +87,42 @@ public record ServerManifest(List<ModFileData> files) {
         public static final Codec<ModFileData> CODEC = RecordCodecBuilder.create(i -> i.group(
                 Codec.STRING.fieldOf("rootModId").forGetter(ModFileData::rootModId),
                 HASH_CODE_CODEC.fieldOf("checksum").forGetter(ModFileData::checksum),
-                Codec.STRING.fieldOf("fileName").forGetter(ModFileData::fileName)
+                Codec.STRING.fieldOf("fileName").forGetter(ModFileData::fileName),
+                Codec.LONG.optionalFieldOf("size", 0L).forGetter(ModFileData::size),
+                Codec.unboundedMap(Codec.STRING, HASH_CODE_CODEC).optionalFieldOf("hashes", Map.of()).forGetter(ModFileData::hashes)
         ).apply(i, ModFileData::new));
+
+        public ModFileData {
+            // Sorted, so that the manifest always serialises the same way
+            hashes = ImmutableSortedMap.copyOf(hashes);
+        }
+
+        /**
+         * @return the hash of the file with the given algorithm, or {@code null} if the server did not publish one
+         */
+        @Nullable
+        public HashCode hash(final HashAlgorithm algorithm) {
+            return algorithm == HashAlgorithm.SHA256 ? checksum : hashes.get(algorithm.id());
+        }
     }
 
     public static class Builder {
         private final ImmutableList.Builder<ModFileData> mods = ImmutableList.builder();
 
-        public Builder add(final String rootId, final HashCode checksum, final String fileName) {
-            mods.add(new ModFileData(rootId, checksum, fileName));
+        public Builder add(final String rootId, final HashCode checksum, final String fileName, final long size) {
+            return add(new ModFileData(rootId, checksum, fileName, size, Map.of()));
+        }
+
+        public Builder add(final ModFileData file) {
+            mods.add(file);
             return this;
         }
 
+        /**
+         * Files are sorted by name, so that the same set of files always serialises, and hashes, the same way.
+         */
         public ServerManifest build() {
-            return new ServerManifest(mods.build());
+            return new ServerManifest(ImmutableList.sortedCopyOf(Comparator.comparing(ModFileData::fileName), mods.build()));
         }
     }
 }
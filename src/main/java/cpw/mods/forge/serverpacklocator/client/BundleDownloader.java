@@ -0,0 +1,179 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches many small files in a single {@link BundleFormat} response, unpacking each straight into place as it arrives.
+ * Each file is verified against its checksum on the way in, and only replaces its target once it matches.
+ */
+class BundleDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // Answers meaning there is no bundle endpoint at all, as from static mirrors
+    private static final Set<Integer> UNSUPPORTED_STATUSES = Set.of(404, 405, 501);
+
+    private final HttpClient client;
+    private final String userAgent;
+    // Older servers do not have the endpoint, so stop asking once we know
+    private volatile boolean supported = true;
+    // Once the server has sent a bundle, any failure is only about that one request
+    private volatile boolean confirmed;
+
+    BundleDownloader(final HttpClient client, final String userAgent) {
+        this.client = client;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Blocks until the bundle has been received. A failure part way through keeps the files that were already
+     * installed.
+     *
+     * @return the files that were installed, anything else must be downloaded on its own
+     */
+    Set<ServerManifest.ModFileData> download(final URI uri, final List<ServerManifest.ModFileData> files, final Function<ServerManifest.ModFileData, Path> resolvePath, final DownloadProgress progress) throws InterruptedException {
+        final Set<ServerManifest.ModFileData> installed = new HashSet<>();
+        if (!supported || files.isEmpty()) {
+            return installed;
+        }
+        final Map<HashCode, ServerManifest.ModFileData> filesByChecksum = new HashMap<>();
+        for (final ServerManifest.ModFileData file : files) {
+            filesByChecksum.putIfAbsent(file.checksum(), file);
+        }
+        final String body = filesByChecksum.keySet().stream().map(HashCode::toString).collect(Collectors.joining("\n"));
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("User-Agent", userAgent)
+                .header("Content-Type", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+
+        try {
+            final HttpResponse<InputStream> response = sendWhenNotBusy(request);
+            try (final DataInputStream input = new DataInputStream(response.body())) {
+                if (response.statusCode() != 200) {
+                    if (isUnsupported(response.statusCode())) {
+                        LOGGER.info("Server does not support bundles ({}), downloading files individually", response.statusCode());
+                        supported = false;
+                    } else {
+                        LOGGER.warn("Bundle request failed ({}), downloading its {} files individually", response.statusCode(), files.size());
+                    }
+                    return installed;
+                }
+                confirmed = true;
+                final byte[] checksumBytes = new byte[BundleFormat.CHECKSUM_BYTES];
+                while (readChecksum(input, checksumBytes)) {
+                    final HashCode checksum = HashCode.fromBytes(checksumBytes);
+                    final long length = input.readLong();
+                    final ServerManifest.ModFileData file = filesByChecksum.get(checksum);
+                    if (file == null) {
+                        LOGGER.warn("Skipping unexpected file {} in bundle", checksum);
+                        input.skipNBytes(length);
+                    } else if (unpack(input, length, file, resolvePath.apply(file), progress.file(file))) {
+                        installed.add(file);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Bundle download failed after {} of {} files, fetching the rest individually", installed.size(), files.size(), e);
+        }
+        return installed;
+    }
+
+    private boolean isUnsupported(final int statusCode) {
+        // Pack servers from before bundles turn away every POST with a 400
+        return UNSUPPORTED_STATUSES.contains(statusCode) || statusCode == 400 && !confirmed;
+    }
+
+    private HttpResponse<InputStream> sendWhenNotBusy(final HttpRequest request) throws IOException, InterruptedException {
+        for (int busyRetries = 1; ; busyRetries++) {
+            final HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != ServerBusyException.STATUS) {
+                return response;
+            }
+            response.body().close();
+            final ServerBusyException busy = new ServerBusyException("Server is busy, cannot download bundle yet", response);
+            if (busyRetries > ServerBusyException.MAX_RETRIES) {
+                throw busy;
+            }
+            LOGGER.info("Server is busy, waiting to download bundle");
+            busy.backOff(busyRetries);
+        }
+    }
+
+    private static boolean readChecksum(final DataInputStream input, final byte[] checksumBytes) throws IOException {
+        final int read = input.readNBytes(checksumBytes, 0, checksumBytes.length);
+        if (read == 0) {
+            return false;
+        } else if (read < checksumBytes.length) {
+            throw new EOFException("Bundle ended in the middle of an entry");
+        }
+        return true;
+    }
+
+    private static boolean unpack(final InputStream input, final long length, final ServerManifest.ModFileData file, final Path targetPath, final DownloadProgress.FileProgress progress) throws IOException {
+        final Path partPath = targetPath.resolveSibling(targetPath.getFileName() + FileDownloader.PART_EXTENSION);
+        final MessageDigest digest = FileChecksumValidator.newDigest();
+        progress.restart(0);
+        try (final OutputStream output = new DigestOutputStream(Files.newOutputStream(partPath), digest)) {
+            final long copied = copy(input, output, length, progress);
+            if (copied < length) {
+                throw new EOFException("Bundle ended in the middle of " + file.fileName());
+            }
+        }
+
+        final HashCode checksum = HashCode.fromBytes(digest.digest());
+        if (!file.checksum().equals(checksum)) {
+            LOGGER.warn("Checksum mismatch for {} in bundle: expected {} but received {}", file.fileName(), file.checksum(), checksum);
+            Files.deleteIfExists(partPath);
+            return false;
+        }
+        try {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    private static long copy(final InputStream input, final OutputStream output, final long length, final DownloadProgress.FileProgress progress) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        long copied = 0;
+        while (copied < length) {
+            final int read = input.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            if (read == -1) {
+                break;
+            }
+            output.write(buffer, 0, read);
+            copied += read;
+            progress.received(read);
+        }
+        return copied;
+    }
+}
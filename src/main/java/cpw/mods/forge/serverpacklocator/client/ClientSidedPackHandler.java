@@ -3,7 +3,6 @@ package cpw.mods.forge.serverpacklocator.client;
 import com.electronwill.nightconfig.core.ConfigFormat;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
 import cpw.mods.forge.serverpacklocator.SidedPackHandler;
-import net.neoforged.fml.ModLoadingException;
 import net.neoforged.fml.ModLoadingIssue;
 import net.neoforged.neoforgespi.ILaunchContext;
 import net.neoforged.neoforgespi.locating.IDiscoveryPipeline;
@@ -13,7 +12,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
@@ -22,9 +20,6 @@ import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class ClientSidedPackHandler extends SidedPackHandler {
     private static final Logger LOGGER = LogManager.getLogger();
@@ -60,38 +55,40 @@ public class ClientSidedPackHandler extends SidedPackHandler {
         final List<String> excludedModIds = getConfig().<List<String>>getOptional("client.excludedModIds").orElse(List.of());
         final SimpleHttpClient clientDownloader = new SimpleHttpClient(this, Set.copyOf(excludedModIds), serverModsDir);
 
-        final ServerManifest manifest = clientDownloader.waitForResult();
+        final ServerManifest manifest = clientDownloader.waitForManifest();
         if (manifest == null) {
-            pipeline.addIssue(ModLoadingIssue.warning("Failed to download server pack! Mods may not be loaded.\nPlease check your internet connection and restart your game, or contact the server administrator if the issue persists."));
+            pipeline.addIssue(downloadFailed());
             return;
         }
 
-        final Set<String> manifestFileList = manifest.files().stream()
-                .map(ServerManifest.ModFileData::fileName)
-                .collect(Collectors.toSet());
-        discoverModFiles(pipeline, manifestFileList::contains);
-    }
-
-    private void discoverModFiles(final IDiscoveryPipeline pipeline, final Predicate<String> fileNamePredicate) {
-        final List<Path> directoryContent;
-        try (final Stream<Path> files = Files.list(serverModsDir)) {
-            directoryContent = files
-                    .filter(path -> fileNamePredicate.test(path.getFileName().toString()))
-                    .sorted(Comparator.comparing(path -> path.getFileName().toString().toLowerCase(Locale.ROOT)))
-                    .toList();
-        } catch (final UncheckedIOException | IOException e) {
-            throw new ModLoadingException(ModLoadingIssue.error("fml.modloadingissue.failed_to_list_folder_content", serverModsDir)
-                    .withAffectedPath(serverModsDir)
-                    .withCause(e)
-            );
-        }
-
-        for (final Path file : directoryContent) {
-            if (!Files.isRegularFile(file)) {
-                pipeline.addIssue(ModLoadingIssue.warning("fml.modloadingissue.brokenfile.unknown").withAffectedPath(file));
+        // Handed over in the same name order as before, but each file as soon as it and those before it are ready,
+        // so that discovery gets going while the largest downloads are still running
+        final List<ServerManifest.ModFileData> files = clientDownloader.filesToSync(manifest).stream()
+                .sorted(Comparator.comparing(file -> file.fileName().toLowerCase(Locale.ROOT)))
+                .toList();
+        boolean addedAny = false;
+        for (final ServerManifest.ModFileData file : files) {
+            final Path path = clientDownloader.waitForFile(file);
+            if (path == null) {
+                // Whatever was handed over already cannot be taken back, and launching with only part of the pack is
+                // worse than not launching at all
+                pipeline.addIssue(addedAny ? downloadFailedPartWay() : downloadFailed());
+                return;
+            }
+            if (!Files.isRegularFile(path)) {
+                pipeline.addIssue(ModLoadingIssue.warning("fml.modloadingissue.brokenfile.unknown").withAffectedPath(path));
                 continue;
             }
-            pipeline.addPath(file, ModFileDiscoveryAttributes.DEFAULT, IncompatibleFileReporting.WARN_ALWAYS);
+            pipeline.addPath(path, ModFileDiscoveryAttributes.DEFAULT, IncompatibleFileReporting.WARN_ALWAYS);
+            addedAny = true;
         }
     }
+
+    private static ModLoadingIssue downloadFailed() {
+        return ModLoadingIssue.warning("Failed to download server pack! Mods may not be loaded.\nPlease check your internet connection and restart your game, or contact the server administrator if the issue persists.");
+    }
+
+    private static ModLoadingIssue downloadFailedPartWay() {
+        return ModLoadingIssue.error("Failed to download the rest of the server pack after some of its mods were loaded.\nPlease check your internet connection and restart your game, or contact the server administrator if the issue persists.");
+    }
 }
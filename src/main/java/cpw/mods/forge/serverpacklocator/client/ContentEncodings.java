@@ -0,0 +1,37 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpHeaders;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The content encodings understood by the client, advertised through {@code Accept-Encoding}.
+ */
+final class ContentEncodings {
+    static final String HEADER = "Accept-Encoding";
+    static final String ACCEPTED = "gzip";
+
+    private ContentEncodings() {
+    }
+
+    static InputStream decode(final HttpHeaders headers, final InputStream body) throws IOException {
+        final String encoding = headers.firstValue("Content-Encoding").orElse("identity").trim().toLowerCase(Locale.ROOT);
+        return switch (encoding) {
+            case "identity" -> body;
+            case "gzip" -> new GZIPInputStream(body, 64 * 1024);
+            default -> {
+                body.close();
+                throw new IOException("Unsupported content encoding: " + encoding);
+            }
+        };
+    }
+
+    static byte[] decode(final HttpHeaders headers, final byte[] body) throws IOException {
+        try (final InputStream input = decode(headers, new ByteArrayInputStream(body))) {
+            return input.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import com.mojang.serialization.DataResult;
+import cpw.mods.forge.serverpacklocator.ChunkIndex;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds a file from the chunks it shares with older local files, fetching only the byte ranges that are missing.
+ * The result is always verified against the manifest checksum before it replaces the target, and any failure leaves
+ * the target untouched so that the caller can fall back to a full download.
+ */
+class DeltaDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Past these limits the delta costs more round trips than it saves
+    private static final int MAX_RANGES = 256;
+    private static final double MAX_MISSING_FRACTION = 0.8;
+
+    private final HttpClient client;
+    private final String userAgent;
+
+    DeltaDownloader(final HttpClient client, final String userAgent) {
+        this.client = client;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Blocks until the delta download completes.
+     *
+     * @return {@code true} if the target was replaced with a verified copy of the file
+     */
+    boolean tryDownload(final ServerManifest.ModFileData modFile, final URI fileUri, final URI chunkIndexUri, final Path targetPath, final List<Path> seeds, final DownloadProgress.FileProgress progress) {
+        try {
+            final ChunkIndex index = fetchChunkIndex(chunkIndexUri);
+            if (index == null) {
+                return false;
+            }
+            final List<Segment> plan = plan(index, indexSeeds(seeds));
+            final long missingBytes = plan.stream().filter(segment -> segment.source() == null).mapToLong(Segment::length).sum();
+            final long remoteSegments = plan.stream().filter(segment -> segment.source() == null).count();
+            final long totalBytes = index.size();
+            if (remoteSegments > MAX_RANGES || missingBytes > totalBytes * MAX_MISSING_FRACTION) {
+                LOGGER.debug("Not enough shared content to delta sync {}, {} of {} bytes missing", modFile.fileName(), missingBytes, totalBytes);
+                return false;
+            }
+
+            final Path tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".delta");
+            try {
+                progress.restart(0);
+                assemble(plan, fileUri, tempPath, progress);
+                final HashCode checksum = FileChecksumValidator.computeChecksumFor(tempPath);
+                if (!modFile.checksum().equals(checksum)) {
+                    LOGGER.warn("Delta sync of {} produced checksum {}, expected {}", modFile.fileName(), checksum, modFile.checksum());
+                    return false;
+                }
+                try {
+                    Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            LOGGER.info("Delta synced {}, transferred {} of {} bytes", modFile.fileName(), missingBytes, totalBytes);
+            return true;
+        } catch (final IOException | UncheckedIOException e) {
+            LOGGER.warn("Delta sync of {} failed, falling back to a full download", modFile.fileName(), e);
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Nullable
+    private ChunkIndex fetchChunkIndex(final URI uri) throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("User-Agent", userAgent)
+                .GET()
+                .build();
+        final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() != 200) {
+            LOGGER.debug("No chunk index available from {}: {}", uri, response.statusCode());
+            return null;
+        }
+        final DataResult<ChunkIndex> result = ChunkIndex.parse(response.body());
+        return result.resultOrPartial(error -> LOGGER.warn("Malformed chunk index from {}: {}", uri, error)).orElse(null);
+    }
+
+    private static Map<HashCode, Segment> indexSeeds(final List<Path> seeds) throws IOException {
+        final Map<HashCode, Segment> chunks = new HashMap<>();
+        for (final Path seed : seeds) {
+            long offset = 0;
+            for (final ChunkIndex.Chunk chunk : ChunkIndex.of(seed).chunks()) {
+                chunks.putIfAbsent(chunk.hash(), new Segment(seed, offset, chunk.length()));
+                offset += chunk.length();
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Lays out the target file as a sequence of segments, either copied from a local seed or, when {@code source} is
+     * {@code null}, fetched from the server. Adjacent remote chunks are merged into a single range.
+     */
+    private static List<Segment> plan(final ChunkIndex index, final Map<HashCode, Segment> localChunks) {
+        final List<Segment> plan = new ArrayList<>();
+        long offset = 0;
+        for (final ChunkIndex.Chunk chunk : index.chunks()) {
+            final Segment local = localChunks.get(chunk.hash());
+            if (local != null && local.length() == chunk.length()) {
+                plan.add(local);
+            } else if (!plan.isEmpty() && plan.getLast().source() == null) {
+                final Segment previous = plan.removeLast();
+                plan.add(new Segment(null, previous.offset(), previous.length() + chunk.length()));
+            } else {
+                plan.add(new Segment(null, offset, chunk.length()));
+            }
+            offset += chunk.length();
+        }
+        return plan;
+    }
+
+    private void assemble(final List<Segment> plan, final URI fileUri, final Path tempPath, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        final Map<Path, FileChannel> seedChannels = new HashMap<>();
+        try (final FileChannel output = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            for (final Segment segment : plan) {
+                if (segment.source() != null) {
+                    final FileChannel seed = seedChannels.computeIfAbsent(segment.source(), DeltaDownloader::openSeed);
+                    copyFully(seed, segment.offset(), segment.length(), output, offset);
+                } else {
+                    fetchRange(fileUri, segment, output, offset, progress);
+                }
+                offset += segment.length();
+            }
+        } finally {
+            for (final FileChannel channel : seedChannels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    private void fetchRange(final URI fileUri, final Segment segment, final FileChannel output, final long outputOffset, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        for (int busyRetries = 1; ; busyRetries++) {
+            try {
+                tryFetchRange(fileUri, segment, output, outputOffset, progress);
+                return;
+            } catch (final ServerBusyException e) {
+                if (busyRetries > ServerBusyException.MAX_RETRIES) {
+                    throw e;
+                }
+                e.backOff(busyRetries);
+            }
+        }
+    }
+
+    private void tryFetchRange(final URI fileUri, final Segment segment, final FileChannel output, final long outputOffset, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        final long end = segment.offset() + segment.length() - 1;
+        final HttpRequest request = HttpRequest.newBuilder(fileUri)
+                .header("User-Agent", userAgent)
+                .header("Range", "bytes=" + segment.offset() + "-" + end)
+                .GET()
+                .build();
+        final HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (final InputStream body = response.body()) {
+            final String expectedRange = "bytes " + segment.offset() + "-" + end + "/";
+            if (response.statusCode() == ServerBusyException.STATUS) {
+                throw new ServerBusyException("Server is busy, cannot fetch range from " + fileUri + " yet", response);
+            }
+            if (response.statusCode() != 206 || !response.headers().firstValue("Content-Range").orElse("").startsWith(expectedRange)) {
+                throw new IOException("Server did not honour range request for " + fileUri + ": " + response.statusCode());
+            }
+            final byte[] buffer = new byte[64 * 1024];
+            long position = outputOffset;
+            long remaining = segment.length();
+            while (remaining > 0) {
+                final int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Range response for " + fileUri + " ended early");
+                }
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    position += output.write(data, position);
+                }
+                remaining -= read;
+                progress.received(read);
+            }
+        }
+    }
+
+    private static void copyFully(final FileChannel source, final long sourceOffset, final long length, final FileChannel target, final long targetOffset) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            final long transferred = source.transferTo(sourceOffset + copied, length - copied, target.position(targetOffset + copied));
+            if (transferred <= 0) {
+                throw new IOException("Seed file ended early");
+            }
+            copied += transferred;
+        }
+    }
+
+    private static FileChannel openSeed(final Path path) {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record Segment(@Nullable Path source, long offset, long length) {
+    }
+}
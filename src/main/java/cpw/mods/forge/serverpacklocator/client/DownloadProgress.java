@@ -0,0 +1,173 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Tracks bytes and files across all downloads of a sync, and turns them into progress, throughput and time-left
+ * messages for the loading screen. Downloads report every chunk they receive, so messages are throttled to a few per
+ * second.
+ */
+class DownloadProgress {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // Weight of the latest interval in the smoothed throughput, enough to follow real changes without jittering
+    private static final double SMOOTHING = 0.2;
+
+    private final Consumer<String> reporter;
+    private final long totalBytes;
+    private final int totalFiles;
+    private final long startTime = System.nanoTime();
+    private final Map<ServerManifest.ModFileData, FileProgress> files = new ConcurrentHashMap<>();
+    // Bytes of the target files that are in place, which moves back if a download has to start over
+    private final LongAdder completedBytes = new LongAdder();
+    // Bytes of content actually received from the server, counted after decompression so that the throughput is in
+    // the same unit as the bytes left
+    private final LongAdder receivedBytes = new LongAdder();
+    private final AtomicInteger remainingFiles;
+    private final AtomicLong nextReportTime = new AtomicLong();
+
+    // Only touched while reporting, which is serialised
+    private long lastReportTime = startTime;
+    private long lastReportBytes;
+    private double smoothedBytesPerSecond = -1;
+
+    DownloadProgress(final List<ServerManifest.ModFileData> files, final Consumer<String> reporter) {
+        this.reporter = reporter;
+        // Files from older servers have no size, so the total is a lower bound for them
+        this.totalBytes = files.stream().mapToLong(ServerManifest.ModFileData::size).sum();
+        this.totalFiles = files.size();
+        this.remainingFiles = new AtomicInteger(files.size());
+    }
+
+    /**
+     * @return the progress of the given file, shared by every way we might try to fetch it
+     */
+    FileProgress file(final ServerManifest.ModFileData file) {
+        return files.computeIfAbsent(file, FileProgress::new);
+    }
+
+    void finish() {
+        report(System.nanoTime());
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        LOGGER.info("Downloaded {} files ({}) in {} s, averaging {}/s", totalFiles, formatBytes(receivedBytes.sum()), String.format(Locale.ROOT, "%.1f", seconds), formatBytes((long) (receivedBytes.sum() / Math.max(seconds, 0.001))));
+    }
+
+    private void maybeReport() {
+        final long now = System.nanoTime();
+        final long next = nextReportTime.get();
+        if (now >= next && nextReportTime.compareAndSet(next, now + REPORT_INTERVAL_NANOS)) {
+            report(now);
+        }
+    }
+
+    private synchronized void report(final long now) {
+        final long received = receivedBytes.sum();
+        final double intervalSeconds = (now - lastReportTime) / 1e9;
+        if (intervalSeconds > 0) {
+            final double bytesPerSecond = (received - lastReportBytes) / intervalSeconds;
+            smoothedBytesPerSecond = smoothedBytesPerSecond < 0 ? bytesPerSecond : SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * smoothedBytesPerSecond;
+        }
+        lastReportTime = now;
+        lastReportBytes = received;
+        reporter.accept(describe());
+    }
+
+    private String describe() {
+        final long completed = Math.min(completedBytes.sum(), totalBytes);
+        final int remaining = remainingFiles.get();
+        final StringBuilder message = new StringBuilder("Downloading mods: ")
+                .append(formatBytes(completed)).append(" of ").append(formatBytes(totalBytes));
+        if (totalBytes > 0) {
+            message.append(" (").append(completed * 100 / totalBytes).append("%)");
+        }
+        message.append(", ").append(remaining).append(remaining == 1 ? " file" : " files").append(" left");
+        if (smoothedBytesPerSecond > 0) {
+            message.append(", ").append(formatBytes((long) smoothedBytesPerSecond)).append("/s");
+            if (remaining > 0) {
+                final long secondsLeft = (long) Math.ceil((totalBytes - completed) / smoothedBytesPerSecond);
+                message.append(", about ").append(formatDuration(secondsLeft)).append(" left");
+            }
+        }
+        return message.toString();
+    }
+
+    private static String formatBytes(final long bytes) {
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        } else if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024.0));
+        }
+        return String.format(Locale.ROOT, "%.2f GiB", bytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+    private static String formatDuration(final long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        } else if (seconds < 3600) {
+            return seconds / 60 + " min " + seconds % 60 + " s";
+        }
+        return seconds / 3600 + " h " + seconds % 3600 / 60 + " min";
+    }
+
+    /**
+     * Progress of a single file. A download that has to start over, or resumes part way, moves it back or forward
+     * to where it really is.
+     */
+    final class FileProgress {
+        private final long size;
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private FileProgress(final ServerManifest.ModFileData file) {
+            this.size = file.size();
+        }
+
+        /**
+         * @param offset bytes of the file already in place, such as a partial download being resumed
+         */
+        void restart(final long offset) {
+            completedBytes.add(offset - completed.getAndSet(offset));
+        }
+
+        void received(final long bytes) {
+            completed.addAndGet(bytes);
+            completedBytes.add(bytes);
+            receivedBytes.add(bytes);
+            maybeReport();
+        }
+
+        /**
+         * Takes back bytes received for part of the file that will be fetched again, such as a range that failed.
+         */
+        void discard(final long bytes) {
+            completed.addAndGet(-bytes);
+            completedBytes.add(-bytes);
+        }
+
+        /**
+         * Marks the file as in place, counting whatever was not received, such as content copied from local files.
+         */
+        void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            completedBytes.add(Math.max(size - completed.getAndSet(size), 0));
+            remainingFiles.decrementAndGet();
+            maybeReport();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs download tasks with a bounded number in flight at once. The largest files are started first so that a single
+ * big file does not end up downloading on its own at the end, and the first failure cancels all remaining work,
+ * interrupting the tasks that are already running.
+ * <p>
+ * Each running task takes one slot. A task can take more for work it splits off, such as the ranges of a large file,
+ * but only slots that no queued task could use, so the limit covers every download in flight.
+ */
+class DownloadScheduler {
+    private final Executor executor;
+    private final Semaphore slots;
+    private final Set<Batch> batches = ConcurrentHashMap.newKeySet();
+
+    DownloadScheduler(final int concurrency, final Executor executor) {
+        this.executor = executor;
+        this.slots = new Semaphore(Math.max(concurrency, 1));
+    }
+
+    CompletableFuture<Void> run(final List<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final Batch batch = new Batch(tasks);
+        batches.add(batch);
+        batch.result.whenComplete((unused, throwable) -> batches.remove(batch));
+        batch.startQueued();
+        return batch.result;
+    }
+
+    /**
+     * Takes slots for work split off from a running task, as long as no queued task is waiting for them.
+     *
+     * @return how many slots were taken, up to {@code wanted}, all of which must be given back with
+     * {@link #releaseSpareSlots(int)}
+     */
+    int tryAcquireSpareSlots(final int wanted) {
+        int acquired = 0;
+        while (acquired < wanted && batches.stream().noneMatch(Batch::hasQueued) && slots.tryAcquire()) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    void releaseSpareSlots(final int count) {
+        if (count > 0) {
+            releaseSlots(count);
+        }
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    private void releaseSlots(final int count) {
+        slots.release(count);
+        batches.forEach(Batch::startQueued);
+    }
+
+    /**
+     * @param size   expected size in bytes, used only to order the work
+     * @param action runs the download to completion on one of the scheduler's threads, which is interrupted if the
+     *               batch fails in the meantime
+     */
+    record Task(String name, long size, Runnable action) {
+    }
+
+    private final class Batch {
+        private final Queue<Task> queue;
+        private final AtomicInteger remaining;
+        private final Set<Future<?>> inFlight = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private Batch(final List<Task> tasks) {
+            queue = new ConcurrentLinkedQueue<>(tasks.stream().sorted(Comparator.comparingLong(Task::size).reversed()).toList());
+            remaining = new AtomicInteger(tasks.size());
+            result.whenComplete((unused, throwable) -> {
+                if (throwable != null) {
+                    // Unlike completable futures, these interrupt the thread running the task, which aborts its request
+                    inFlight.forEach(future -> future.cancel(true));
+                }
+            });
+        }
+
+        private boolean hasQueued() {
+            return !result.isDone() && !queue.isEmpty();
+        }
+
+        private void startQueued() {
+            while (hasQueued() && slots.tryAcquire()) {
+                final Task task = queue.poll();
+                if (task == null) {
+                    slots.release();
+                    return;
+                }
+                start(task);
+            }
+        }
+
+        private void start(final Task task) {
+            final FutureTask<Void> future = new FutureTask<>(() -> run(task), null) {
+                @Override
+                protected void done() {
+                    inFlight.remove(this);
+                    releaseSlots(1);
+                }
+            };
+            inFlight.add(future);
+            // We may have failed while this task was being added, after the in-flight set was cancelled
+            if (result.isDone()) {
+                future.cancel(true);
+                return;
+            }
+            executor.execute(future);
+        }
+
+        private void run(final Task task) {
+            try {
+                task.action().run();
+            } catch (final Throwable throwable) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                result.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * Downloads a whole file into a {@code .part} file next to its target, resuming from whatever is already there after a
+ * dropped connection or on the next launch. The body is hashed as it is written, so verifying it costs no extra reads,
+ * and the target is only replaced, atomically, once the checksum matches.
+ */
+class FileDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    static final String PART_EXTENSION = ".part";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final HttpClient client;
+    private final String userAgent;
+
+    FileDownloader(final HttpClient client, final String userAgent) {
+        this.client = client;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Blocks until the download completes and the target has been replaced with a verified copy.
+     */
+    void download(final ServerManifest.ModFileData modFile, final URI uri, final Path targetPath, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        final Path partPath = targetPath.resolveSibling(targetPath.getFileName() + PART_EXTENSION);
+        int busyRetries = 0;
+        for (int attempt = 1; ; ) {
+            try {
+                final HashCode checksum = fetch(modFile, uri, partPath, progress);
+                if (modFile.checksum().equals(checksum)) {
+                    break;
+                }
+                // Never resume from content we know to be bad
+                Files.deleteIfExists(partPath);
+                throw new IOException("Checksum mismatch for " + modFile.fileName() + ": expected " + modFile.checksum() + " but downloaded " + checksum);
+            } catch (final ServerBusyException e) {
+                if (++busyRetries > ServerBusyException.MAX_RETRIES) {
+                    throw e;
+                }
+                LOGGER.info("Server is busy, waiting to download {}", modFile.fileName());
+                e.backOff(busyRetries);
+            } catch (final IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                attempt++;
+                LOGGER.warn("Download of {} failed, retrying (attempt {} of {})", modFile.fileName(), attempt, MAX_ATTEMPTS, e);
+            }
+        }
+
+        try {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(partPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Brings the partial file up to date with the server, hashing the body as it is written.
+     *
+     * @return the checksum of the whole partial file
+     */
+    private HashCode fetch(final ServerManifest.ModFileData modFile, final URI uri, final Path partPath, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        final long offset = Files.isRegularFile(partPath) ? Files.size(partPath) : 0;
+        // Resuming is the only case where we need to read anything back, to bring the digest up to the same point
+        final MessageDigest resumedDigest = offset > 0 ? digestOf(partPath) : null;
+        if (resumedDigest != null && offset == modFile.size()) {
+            // We were stopped after the download finished but before it was moved into place
+            return HashCode.fromBytes(resumedDigest.digest());
+        }
+        final HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .header("User-Agent", userAgent)
+                .GET();
+        if (resumedDigest != null) {
+            // Ranges are over the original content, and If-Range makes the server send everything if the file changed
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", "\"" + modFile.checksum() + "\"");
+        } else {
+            request.header(ContentEncodings.HEADER, ContentEncodings.ACCEPTED);
+        }
+
+        final HttpResponse<HashCode> response = client.send(request.build(), info -> switch (info.statusCode()) {
+            case 200 -> {
+                progress.restart(0);
+                yield HashingFileSubscriber.create(partPath, false, FileChecksumValidator.newDigest(), info.headers().firstValue("Content-Encoding").orElse("identity"), progress::received);
+            }
+            case 206 -> {
+                if (!isResumedRange(info, offset) || resumedDigest == null) {
+                    yield HttpResponse.BodySubscribers.replacing(null);
+                }
+                progress.restart(offset);
+                yield HashingFileSubscriber.create(partPath, true, resumedDigest, "identity", progress::received);
+            }
+            default -> HttpResponse.BodySubscribers.replacing(null);
+        });
+        return switch (response.statusCode()) {
+            case 200 -> response.body();
+            case 206 -> {
+                if (response.body() == null) {
+                    // Start from scratch on the next attempt rather than resuming into the same mismatch again
+                    Files.deleteIfExists(partPath);
+                    throw new IOException("Server sent range " + response.headers().firstValue("Content-Range").orElse("") + " while resuming " + modFile.fileName() + " from " + offset);
+                }
+                LOGGER.info("Resumed download of {} from {} bytes", modFile.fileName(), offset);
+                yield response.body();
+            }
+            case 416 -> {
+                // The partial file is longer than the file on the server, so it cannot be part of it
+                Files.deleteIfExists(partPath);
+                throw new IOException("Partial download of " + modFile.fileName() + " does not match the server");
+            }
+            case ServerBusyException.STATUS -> throw new ServerBusyException("Server is busy, cannot download " + modFile.fileName() + " yet", response);
+            // Such as a mirror that does not have the file, or a server that is restarting
+            default -> throw new IOException("Unexpected response code " + response.statusCode() + " while requesting file " + modFile.fileName());
+        };
+    }
+
+    private static boolean isResumedRange(final HttpResponse.ResponseInfo info, final long offset) {
+        return info.headers().firstValue("Content-Range").orElse("").startsWith("bytes " + offset + "-");
+    }
+
+    private static MessageDigest digestOf(final Path path) throws IOException {
+        final MessageDigest digest = FileChecksumValidator.newDigest();
+        try (final InputStream input = Files.newInputStream(path)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest;
+    }
+}
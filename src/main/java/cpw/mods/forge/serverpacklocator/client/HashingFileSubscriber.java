@@ -0,0 +1,257 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Writes a response body to a file while feeding the same bytes through a digest, completing with the checksum of the
+ * whole file once the body ends. A gzip-encoded body is inflated on the fly, so that the file, its checksum and the
+ * reported progress are always of the original content.
+ */
+class HashingFileSubscriber implements HttpResponse.BodySubscriber<HashCode> {
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private final LongConsumer progress;
+    @Nullable
+    private final GzipDecoder decoder;
+    private final CompletableFuture<HashCode> result = new CompletableFuture<>();
+    @Nullable
+    private Flow.Subscription subscription;
+    // Only touched by the thread delivering the body
+    private long written;
+
+    private HashingFileSubscriber(final FileChannel channel, final MessageDigest digest, final LongConsumer progress, @Nullable final GzipDecoder decoder) {
+        this.channel = channel;
+        this.digest = digest;
+        this.progress = progress;
+        this.decoder = decoder;
+    }
+
+    /**
+     * @param append   whether to add to the existing file, in which case the digest must already cover its content
+     * @param progress told how many bytes of the file were written each time a part of the body arrives
+     */
+    static HashingFileSubscriber create(final Path path, final boolean append, final MessageDigest digest, final String contentEncoding, final LongConsumer progress) {
+        final GzipDecoder decoder = switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "identity" -> null;
+            case "gzip" -> new GzipDecoder();
+            default -> throw new UncheckedIOException(new IOException("Unsupported content encoding: " + contentEncoding));
+        };
+        try {
+            final FileChannel channel = append
+                    ? FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                    : FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            return new HashingFileSubscriber(channel, digest, progress, decoder);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<HashCode> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(final List<ByteBuffer> buffers) {
+        final long before = written;
+        try {
+            for (final ByteBuffer buffer : buffers) {
+                if (decoder != null) {
+                    decoder.decode(buffer, this::write);
+                } else {
+                    write(buffer);
+                }
+            }
+        } catch (final IOException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        progress.accept(written - before);
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            if (decoder != null && !decoder.isFinished()) {
+                throw new IOException("Compressed response ended early");
+            }
+            close();
+            result.complete(HashCode.fromBytes(digest.digest()));
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        digest.update(buffer.duplicate());
+        written += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void fail(final Throwable throwable) {
+        try {
+            close();
+        } catch (final IOException e) {
+            throwable.addSuppressed(e);
+        }
+        result.completeExceptionally(throwable);
+    }
+
+    private void close() throws IOException {
+        if (decoder != null) {
+            decoder.end();
+        }
+        channel.close();
+    }
+
+    @FunctionalInterface
+    private interface Sink {
+        void accept(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Inflates a single-member gzip stream pushed to it in arbitrary slices. The gzip trailer is not checked, as the
+     * caller verifies the inflated content against a stronger checksum anyway.
+     */
+    private static final class GzipDecoder {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final Inflater inflater = new Inflater(true);
+        private final ByteBuffer output = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+        @Nullable
+        private ByteBuffer header = ByteBuffer.allocate(256);
+
+        void decode(final ByteBuffer input, final Sink sink) throws IOException {
+            ByteBuffer remaining = input;
+            if (header != null) {
+                remaining = consumeHeader(input);
+                if (remaining == null) {
+                    return;
+                }
+            }
+            if (inflater.finished()) {
+                return;
+            }
+            inflater.setInput(remaining);
+            try {
+                // Keep going until nothing comes out, as the inflater can hold back output after taking all its input
+                while (!inflater.finished()) {
+                    if (inflater.inflate(output.clear()) == 0) {
+                        if (inflater.needsDictionary()) {
+                            throw new IOException("Compressed response needs a preset dictionary");
+                        }
+                        break;
+                    }
+                    sink.accept(output.flip());
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException("Malformed compressed response", e);
+            }
+        }
+
+        boolean isFinished() {
+            return inflater.finished();
+        }
+
+        void end() {
+            inflater.end();
+        }
+
+        /**
+         * Buffers input until the whole header has been seen.
+         *
+         * @return the input following the header, or {@code null} if more is needed
+         */
+        @Nullable
+        private ByteBuffer consumeHeader(final ByteBuffer input) throws IOException {
+            final int before = header.position();
+            if (header.remaining() < input.remaining()) {
+                final ByteBuffer grown = ByteBuffer.allocate(Math.max(header.capacity() * 2, before + input.remaining()));
+                header = grown.put(header.flip());
+            }
+            header.put(input.duplicate());
+
+            final int length = headerLength(header.duplicate().flip());
+            if (length == -1) {
+                return null;
+            }
+            // Skip whatever part of this input belonged to the header
+            final ByteBuffer rest = input.duplicate();
+            rest.position(rest.position() + (length - before));
+            header = null;
+            return rest;
+        }
+
+        /**
+         * @return the length of the header at the start of the given bytes, or -1 if they do not contain all of it
+         */
+        private static int headerLength(final ByteBuffer bytes) throws IOException {
+            if (bytes.remaining() < 10) {
+                return -1;
+            }
+            if ((bytes.get(0) & 0xff) != 0x1f || (bytes.get(1) & 0xff) != 0x8b || bytes.get(2) != 8) {
+                throw new IOException("Not a gzip stream");
+            }
+            final int flags = bytes.get(3) & 0xff;
+            int position = 10;
+            if ((flags & FEXTRA) != 0) {
+                if (bytes.remaining() < position + 2) {
+                    return -1;
+                }
+                position += 2 + ((bytes.get(position) & 0xff) | (bytes.get(position + 1) & 0xff) << 8);
+            }
+            for (final int flag : new int[]{FNAME, FCOMMENT}) {
+                if ((flags & flag) == 0) {
+                    continue;
+                }
+                do {
+                    if (position >= bytes.remaining()) {
+                        return -1;
+                    }
+                } while (bytes.get(position++) != 0);
+            }
+            if ((flags & FHCRC) != 0) {
+                position += 2;
+            }
+            return position <= bytes.remaining() ? position : -1;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The hosts a sync can fetch pack files from: the server itself, and any mirrors found to serve the same manifest.
+ * Downloads go to whichever host is least busy, then quickest to answer, and a mirror that keeps failing or falls far
+ * behind the others is dropped for the rest of the sync. The server is never dropped, as it is the host we trust to
+ * say what the files should be.
+ */
+class MirrorSet {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
+    private static final int MAX_FAILURES = 2;
+    // A mirror is only judged on its speed once it has sent enough to measure
+    private static final long MIN_MEASURED_BYTES = 1024 * 1024;
+    private static final double SLOW_FACTOR = 4;
+
+    private final List<Mirror> mirrors;
+
+    private MirrorSet(final List<Mirror> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    static MirrorSet of(final String server) {
+        return new MirrorSet(List.of(new Mirror(server, true, 0)));
+    }
+
+    /**
+     * Asks every host for its manifest, keeping those that answer in time with the one we got from the server.
+     *
+     * @param manifestHash the hash of the server's manifest, which mirrors must match exactly
+     */
+    static CompletableFuture<MirrorSet> probe(final HttpClient client, final String userAgent, final String server, final List<String> mirrorHosts, final HashCode manifestHash) {
+        final CompletableFuture<Mirror> primary = probe(client, userAgent, server, true, manifestHash)
+                .exceptionally(throwable -> {
+                    // We just fetched the manifest from it, so it is still worth using
+                    LOGGER.debug("Failed to measure latency of server {}", server, throwable);
+                    return new Mirror(server, true, Long.MAX_VALUE);
+                });
+        final List<CompletableFuture<Mirror>> probes = new ArrayList<>();
+        probes.add(primary);
+        for (final String host : mirrorHosts) {
+            probes.add(probe(client, userAgent, host, false, manifestHash).exceptionally(throwable -> {
+                LOGGER.warn("Not using mirror {}: {}", host, throwable.getCause() != null ? throwable.getCause().getMessage() : throwable.getMessage());
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(probes.toArray(CompletableFuture[]::new)).thenApply(unused -> {
+            final List<Mirror> mirrors = new ArrayList<>();
+            for (final CompletableFuture<Mirror> probe : probes) {
+                final Mirror mirror = probe.join();
+                if (mirror != null) {
+                    mirrors.add(mirror);
+                }
+            }
+            mirrors.sort(Comparator.comparingLong(Mirror::latencyNanos));
+            LOGGER.info("Downloading from {} of {} hosts: {}", mirrors.size(), mirrorHosts.size() + 1, mirrors);
+            return new MirrorSet(List.copyOf(mirrors));
+        });
+    }
+
+    private static CompletableFuture<Mirror> probe(final HttpClient client, final String userAgent, final String host, final boolean primary, final HashCode manifestHash) {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/servermanifest.json"))
+                .header("User-Agent", userAgent)
+                .header(ContentEncodings.HEADER, ContentEncodings.ACCEPTED)
+                // Another pack server can tell us it has the same manifest without sending it; a plain web server will not
+                .header("If-None-Match", "\"" + manifestHash + "\"")
+                .timeout(PROBE_TIMEOUT)
+                .GET()
+                .build();
+        final long startTime = System.nanoTime();
+        final AtomicLong latency = new AtomicLong();
+        return client.sendAsync(request, info -> {
+            latency.set(System.nanoTime() - startTime);
+            return HttpResponse.BodySubscribers.ofByteArray();
+        }).thenApply(response -> {
+            if (response.statusCode() == 200) {
+                final String json;
+                try {
+                    json = new String(ContentEncodings.decode(response.headers(), response.body()), StandardCharsets.UTF_8);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Failed to decode manifest", e);
+                }
+                if (!ServerManifest.hash(json).equals(manifestHash)) {
+                    throw new IllegalStateException("Manifest differs from the server's");
+                }
+            } else if (response.statusCode() != 304) {
+                throw new IllegalStateException("Unexpected response code " + response.statusCode() + " while requesting manifest");
+            }
+            return new Mirror(host, primary, latency.get());
+        });
+    }
+
+    /**
+     * Picks the host for the next download, which must be handed back with {@link #release} or {@link #fail}.
+     */
+    Mirror acquire() {
+        Mirror best = null;
+        for (final Mirror mirror : mirrors) {
+            if (mirror.dropped) {
+                continue;
+            }
+            if (best == null || mirror.active.get() < best.active.get()) {
+                best = mirror;
+            }
+        }
+        // The server is never dropped, so there is always a host to pick
+        best.active.incrementAndGet();
+        return best;
+    }
+
+    /**
+     * @return how many hosts we are still downloading from
+     */
+    int available() {
+        return (int) mirrors.stream().filter(mirror -> !mirror.dropped).count();
+    }
+
+    void release(final Mirror mirror, final long bytes, final long nanos) {
+        mirror.active.decrementAndGet();
+        mirror.bytes.add(bytes);
+        mirror.nanos.add(nanos);
+        if (mirror.primary || mirror.bytes.sum() < MIN_MEASURED_BYTES) {
+            return;
+        }
+        final double fastest = mirrors.stream()
+                .filter(other -> other != mirror && !other.dropped && other.bytes.sum() >= MIN_MEASURED_BYTES)
+                .mapToDouble(Mirror::bytesPerSecond)
+                .max().orElse(0);
+        if (mirror.bytesPerSecond() * SLOW_FACTOR < fastest) {
+            drop(mirror, String.format("%.0f KiB/s against %.0f KiB/s from the fastest host", mirror.bytesPerSecond() / 1024, fastest / 1024));
+        }
+    }
+
+    void fail(final Mirror mirror, final Exception cause) {
+        mirror.active.decrementAndGet();
+        if (!mirror.primary && mirror.failures.incrementAndGet() >= MAX_FAILURES) {
+            drop(mirror, cause.getMessage());
+        }
+    }
+
+    /**
+     * Hands back a host that was not used, such as one that asked us to come back later.
+     */
+    void skip(final Mirror mirror) {
+        mirror.active.decrementAndGet();
+    }
+
+    private void drop(final Mirror mirror, final String reason) {
+        if (!mirror.dropped) {
+            mirror.dropped = true;
+            LOGGER.warn("No longer downloading from mirror {}: {}", mirror.host, reason);
+        }
+    }
+
+    static final class Mirror {
+        private final String host;
+        private final boolean primary;
+        private final long latencyNanos;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private volatile boolean dropped;
+
+        private Mirror(final String host, final boolean primary, final long latencyNanos) {
+            this.host = host;
+            this.primary = primary;
+            this.latencyNanos = latencyNanos;
+        }
+
+        String host() {
+            return host;
+        }
+
+        boolean isPrimary() {
+            return primary;
+        }
+
+        long latencyNanos() {
+            return latencyNanos;
+        }
+
+        private double bytesPerSecond() {
+            return bytes.sum() / Math.max(nanos.sum() / 1e9, 0.001);
+        }
+
+        @Override
+        public String toString() {
+            return latencyNanos == Long.MAX_VALUE ? host : host + " (" + latencyNanos / 1_000_000 + " ms)";
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when the server is sending as many files as it allows and asks us to come back later with a {@code 503}. This
+ * is not a failure of the download itself, so it is retried separately and with a much longer patience.
+ */
+class ServerBusyException extends IOException {
+    static final int STATUS = 503;
+    static final int MAX_RETRIES = 20;
+
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long retryAfterMillis;
+
+    ServerBusyException(final String message, final HttpResponse<?> response) {
+        super(message);
+        this.retryAfterMillis = response.headers().firstValue("Retry-After")
+                .flatMap(ServerBusyException::parseSeconds)
+                .map(TimeUnit.SECONDS::toMillis)
+                .orElse(DEFAULT_RETRY_AFTER_MILLIS);
+    }
+
+    /**
+     * Waits before the given retry. The wait grows with each retry, and is spread out so that clients turned away
+     * together do not all come back at the same moment.
+     */
+    void backOff(final int retry) throws InterruptedException {
+        final long delay = Math.min(retryAfterMillis << Math.min(retry - 1, 10), MAX_DELAY_MILLIS);
+        Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+    }
+
+    private static Optional<Long> parseSeconds(final String value) {
+        try {
+            return Optional.of(Math.max(Long.parseLong(value.trim()), 1));
+        } catch (final NumberFormatException e) {
+            // We never send the HTTP-date form, so a proxy must have rewritten it; fall back to our own default
+            return Optional.empty();
+        }
+    }
+}
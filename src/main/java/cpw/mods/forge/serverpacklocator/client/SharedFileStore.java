@@ -0,0 +1,104 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Content-addressed store of verified pack files, keyed by checksum, that can be shared between every instance on the
+ * machine. Files are hardlinked between the store and each servermods directory where the filesystem allows it, and
+ * copied otherwise.
+ * <p>
+ * This is only safe because nothing ever writes to a pack file in place: every download is moved over its target,
+ * which breaks the link rather than changing the stored copy.
+ */
+class SharedFileStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final Path directory;
+
+    SharedFileStore(final Path directory) {
+        this.directory = DirHandler.createDirIfNeeded(directory);
+    }
+
+    /**
+     * Links or copies the stored file with the given checksum over the target.
+     *
+     * @return {@code true} if the store had the file and the target was replaced
+     */
+    boolean materialise(final HashCode checksum, final Path targetPath) {
+        final Path blobPath = blobPath(checksum);
+        if (!Files.isRegularFile(blobPath)) {
+            return false;
+        }
+        try {
+            linkOrCopy(blobPath, targetPath);
+            return true;
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to use {} from shared store {}", checksum, directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * Adds a verified file to the store, unless it already has a copy.
+     */
+    void add(final HashCode checksum, final Path source) {
+        final Path blobPath = blobPath(checksum);
+        if (Files.exists(blobPath)) {
+            return;
+        }
+        try {
+            Files.createDirectories(blobPath.getParent());
+            linkOrCopy(source, blobPath);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to add {} to shared store {}", source, directory, e);
+        }
+    }
+
+    /**
+     * Removes a stored file that turned out not to match its checksum.
+     */
+    void remove(final HashCode checksum) {
+        final Path blobPath = blobPath(checksum);
+        try {
+            Files.deleteIfExists(blobPath);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to remove corrupt file {} from shared store", blobPath, e);
+        }
+    }
+
+    private Path blobPath(final HashCode checksum) {
+        final String name = checksum.toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private static void linkOrCopy(final Path source, final Path target) throws IOException {
+        // Other instances may be doing the same thing at once, so never expose a half-written file
+        final Path tempPath = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try {
+                Files.createLink(tempPath, source);
+            } catch (final IOException | UnsupportedOperationException e) {
+                // Most likely on a different filesystem, or one without hardlinks
+                LOGGER.debug("Could not link {} to {}, copying instead", source, target, e);
+                Files.copy(source, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
@@ -1,42 +1,62 @@
 package cpw.mods.forge.serverpacklocator.client;
 
-import com.google.common.collect.Iterators;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonParseException;
 import com.mojang.serialization.DataResult;
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
 import cpw.mods.forge.serverpacklocator.DirHandler;
-import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.HashAlgorithm;
 import cpw.mods.forge.serverpacklocator.LaunchProgressReporter;
+import cpw.mods.forge.serverpacklocator.ManifestDiff;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 public class SimpleHttpClient {
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private static final Executor EXECUTOR = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
             .setNameFormat("ServerPackLocator HTTP Client - %d")
             .setDaemon(true)
             .build());
 
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 6;
+    private static final long DEFAULT_BUNDLE_THRESHOLD_KB = 256;
+    // Small enough that bundles still spread across the concurrent downloads
+    private static final long MAX_BUNDLE_SIZE = 8 * 1024 * 1024;
+    private static final long DEFAULT_SPLIT_THRESHOLD_KB = 16 * 1024;
+
+    private static final String MANIFEST_FILE_NAME = "servermanifest.json";
+    // Only written once every file in the manifest has been verified, unlike the manifest cached for conditional requests
+    private static final String VERIFIED_MANIFEST_FILE_NAME = "servermanifest.verified.json";
+
     private static final String USER_AGENT = "ServerPackLocator (https://github.com/LoveTropics/serverpacklocator)";
 
     private final HttpClient client = HttpClient.newBuilder()
@@ -45,76 +65,633 @@ public class SimpleHttpClient {
 
     private final Path outputDir;
     private final CompletableFuture<ServerManifest> downloadJob;
+    // The manifest being synced, known long before the sync completes
+    private final CompletableFuture<ServerManifest> syncedManifest = new CompletableFuture<>();
+    // Completed as each file is verified or installed, so that the game can start discovering it straight away
+    private final Map<String, CompletableFuture<Path>> readyFiles = new ConcurrentHashMap<>();
     private final Set<String> excludedModIds;
+    private final ChecksumCache checksumCache;
+    private final boolean paranoidVerification;
+    private final DownloadScheduler downloadScheduler;
+    private final FileDownloader fileDownloader = new FileDownloader(client, USER_AGENT);
+    @Nullable
+    private final DeltaDownloader deltaDownloader;
+    @Nullable
+    private final SharedFileStore sharedStore;
+    private final BundleDownloader bundleDownloader = new BundleDownloader(client, USER_AGENT);
+    private final long bundleThreshold;
+    private final List<String> mirrorHosts;
+    @Nullable
+    private final SplitDownloader splitDownloader;
+    private final long splitThreshold;
+    private final boolean fastStart;
+    // Set when files handed to the game on a fast start turn out to be wrong, so that nothing vouches for them until the
+    // next launch replaces them
+    private volatile boolean staleFilesInUse;
+    @Nullable
+    private volatile ServerManifest previousManifest;
 
     public SimpleHttpClient(final ClientSidedPackHandler packHandler, final Set<String> excludedModIds, final Path outputDir) {
         this.outputDir = outputDir;
         this.excludedModIds = excludedModIds;
+        this.checksumCache = ChecksumCache.load(outputDir.resolve("checksumcache.json"), file -> file.getFileName().toString());
+        this.paranoidVerification = packHandler.getConfig().<Boolean>getOptional("client.paranoidVerification").orElse(false);
+        if (paranoidVerification) {
+            LOGGER.info("Paranoid verification is enabled, all existing files will be rehashed");
+        }
+        final int maxConcurrentDownloads = packHandler.getConfig().getOptionalInt("client.maxConcurrentDownloads").orElse(DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+        this.downloadScheduler = new DownloadScheduler(maxConcurrentDownloads, EXECUTOR);
+        this.deltaDownloader = packHandler.getConfig().<Boolean>getOptional("client.deltaSync").orElse(true) ? new DeltaDownloader(client, USER_AGENT) : null;
+        this.sharedStore = packHandler.getConfig().<String>getOptional("client.sharedStore")
+                .filter(path -> !path.isBlank())
+                .map(path -> new SharedFileStore(Path.of(path)))
+                .orElse(null);
+        this.bundleThreshold = packHandler.getConfig().getOptionalLong("client.bundleThresholdKb").orElse(DEFAULT_BUNDLE_THRESHOLD_KB) * 1024;
+        this.mirrorHosts = packHandler.getConfig().<List<String>>getOptional("client.mirrors").orElse(List.of()).stream()
+                .filter(mirror -> !mirror.isBlank())
+                .map(SimpleHttpClient::normaliseHost)
+                .toList();
+        this.splitThreshold = packHandler.getConfig().getOptionalLong("client.splitThresholdKb").orElse(DEFAULT_SPLIT_THRESHOLD_KB) * 1024;
+        this.splitDownloader = !mirrorHosts.isEmpty() && splitThreshold > 0 ? new SplitDownloader(client, USER_AGENT, downloadScheduler) : null;
+        this.fastStart = packHandler.getConfig().<Boolean>getOptional("client.fastStart").orElse(false);
 
         final Optional<String> remoteServer = packHandler.getConfig().<String>getOptional("client.remoteServer")
-                .map(server -> server.endsWith("/") ? server.substring(0, server.length() - 1) : server);
-        downloadJob = remoteServer.map(this::connectAndDownload)
+                .map(SimpleHttpClient::normaliseHost);
+        downloadJob = remoteServer.map(host -> fastStart ? tryFastStart(host) : connectAndDownload(host))
                 .orElse(CompletableFuture.completedFuture(null));
     }
 
-    private CompletableFuture<ServerManifest> connectAndDownload(final String host) {
-        return downloadManifest(host).thenCompose(manifest -> {
-            List<ServerManifest.ModFileData> filesToDownload = manifest.files().stream()
-                    .filter(file -> !excludedModIds.contains(file.rootModId()))
+    /**
+     * When nothing has changed since the last complete sync, the files on disk are already what the server wants, so a
+     * single small request is enough to launch. Files that have not changed on disk since they were verified are handed
+     * to the game as soon as the server confirms the manifest, and hashed again in the background. Only files that did
+     * change are checked first, while that request is in flight. Any other answer continues as a normal sync from
+     * whatever the server sent.
+     */
+    private CompletableFuture<ServerManifest> tryFastStart(final String host) {
+        final String verifiedJson = readCachedManifest(VERIFIED_MANIFEST_FILE_NAME);
+        ServerManifest verifiedManifest = null;
+        if (verifiedJson != null) {
+            try {
+                verifiedManifest = ServerManifest.parse(verifiedJson).result().orElse(null);
+            } catch (final JsonParseException e) {
+                LOGGER.warn("Ignoring malformed verified server manifest", e);
+            }
+        }
+        if (verifiedManifest == null) {
+            return connectAndDownload(host);
+        }
+        final List<ServerManifest.ModFileData> files = filesToSync(verifiedManifest);
+        // A stat per file is cheap, and catches anything removed or replaced by hand since the last launch
+        if (!files.stream().allMatch(this::looksUnchanged)) {
+            LOGGER.info("Server mods were changed on disk since the last sync, checking all files");
+            return connectAndDownload(host);
+        }
+
+        LaunchProgressReporter.add("Checking server manifest from: " + host);
+        final ServerManifest manifest = verifiedManifest;
+        // The files on disk are the ones this manifest lists, whatever the server says about it
+        previousManifest = manifest;
+        final HashCode verifiedHash = ServerManifest.hash(verifiedJson);
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(host + ManifestDiff.PATH + verifiedHash))
+                .header("User-Agent", USER_AGENT)
+                .GET()
+                .build();
+        // Looking up the checksum cache reads nothing but each file's stat
+        final Map<Path, HashCode> cachedChecksums = checksumCache.getAllCached(files.stream().map(this::resolvePath).toList());
+        final Map<Boolean, List<ServerManifest.ModFileData>> filesByTrust = files.stream()
+                .collect(Collectors.partitioningBy(file -> file.checksum().equals(cachedChecksums.get(resolvePath(file)))));
+        final List<ServerManifest.ModFileData> trustedFiles = filesByTrust.get(true);
+        final List<ServerManifest.ModFileData> changedFiles = filesByTrust.get(false);
+        final CompletableFuture<List<ServerManifest.ModFileData>> verification = findOutdatedFiles(changedFiles);
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8)).thenCompose(response -> {
+            // Let the verification finish either way, so that a full sync finds its results in the checksum cache
+            // rather than hashing the same files again
+            final CompletableFuture<List<ServerManifest.ModFileData>> outdatedFiles = verification.exceptionally(throwable -> {
+                LOGGER.warn("Failed to verify server mods", throwable);
+                return null;
+            });
+            if (response.statusCode() != 304) {
+                final ServerManifest currentManifest = response.statusCode() == 200 ? applyManifestDiff(verifiedHash, manifest, response.body()) : null;
+                final CompletableFuture<ServerManifest> nextManifest = currentManifest != null
+                        ? CompletableFuture.completedFuture(currentManifest)
+                        : downloadFullManifest(host, readCachedManifest(MANIFEST_FILE_NAME));
+                return outdatedFiles.thenCompose(unused -> connectAndDownload(host, nextManifest));
+            }
+
+            LOGGER.info("Server manifest has not changed since the last complete sync, verifying {} files in the background", trustedFiles.size());
+            syncedManifest.complete(manifest);
+            trustedFiles.forEach(this::markReady);
+            verifyInBackground(trustedFiles);
+            return outdatedFiles.thenCompose(outdated -> {
+                // Files that could not be checked are simply downloaded again
+                final List<ServerManifest.ModFileData> filesToDownload = outdated != null ? outdated : changedFiles;
+                final Set<ServerManifest.ModFileData> outdatedSet = Set.copyOf(filesToDownload);
+                changedFiles.stream().filter(file -> !outdatedSet.contains(file)).forEach(this::markReady);
+                if (filesToDownload.isEmpty()) {
+                    checksumCache.save();
+                    return CompletableFuture.completedFuture(manifest);
+                }
+                LOGGER.warn("{} server mods changed on disk and will be downloaded again: {}", filesToDownload.size(), filesToDownload.stream().map(ServerManifest.ModFileData::fileName).toList());
+                // Only these have not been handed to the game yet, so nothing it is using gets replaced
+                deleteVerifiedManifest();
+                return downloadFiles(host, manifest, filesToDownload)
+                        .thenApply(unused -> finishSync(manifest))
+                        .whenComplete((unused, throwable) -> checksumCache.save());
+            });
+        });
+    }
+
+    /**
+     * Hashes files that were handed to the game on trust. They are in use by then, so anything wrong is only logged, and
+     * the next launch does a full sync to replace it.
+     */
+    private void verifyInBackground(final List<ServerManifest.ModFileData> files) {
+        checksumCache.computeAll(files.stream().map(this::resolvePath).toList()).whenComplete((checksums, throwable) -> {
+            if (throwable != null) {
+                LOGGER.warn("Failed to verify server mods in the background", throwable);
+                return;
+            }
+            final List<String> mismatchedFiles = files.stream()
+                    .filter(file -> !file.checksum().equals(checksums.get(resolvePath(file))))
+                    .map(ServerManifest.ModFileData::fileName)
                     .toList();
+            if (!mismatchedFiles.isEmpty()) {
+                LOGGER.warn("{} server mods do not match the server's manifest and will be downloaded again on the next launch: {}", mismatchedFiles.size(), mismatchedFiles);
+                staleFilesInUse = true;
+                deleteVerifiedManifest();
+            }
+            checksumCache.save();
+        });
+    }
+
+    private boolean looksUnchanged(final ServerManifest.ModFileData file) {
+        final Path path = resolvePath(file);
+        try {
+            // Files from older servers have no size, so we can only tell that they are there
+            return Files.isRegularFile(path) && (file.size() == 0 || Files.size(path) == file.size());
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    List<ServerManifest.ModFileData> filesToSync(final ServerManifest manifest) {
+        return manifest.files().stream()
+                .filter(file -> !excludedModIds.contains(file.rootModId()))
+                .toList();
+    }
+
+    private CompletableFuture<ServerManifest> connectAndDownload(final String host) {
+        return connectAndDownload(host, downloadManifest(host));
+    }
+
+    /**
+     * @param currentManifest the server's current manifest, however it was fetched
+     */
+    private CompletableFuture<ServerManifest> connectAndDownload(final String host, final CompletableFuture<ServerManifest> currentManifest) {
+        if (fastStart) {
+            // Files are about to change, so until this sync completes we can no longer vouch for them
+            deleteVerifiedManifest();
+        }
+        return currentManifest.thenCompose(manifest -> {
+            syncedManifest.complete(manifest);
+            List<ServerManifest.ModFileData> filesToSync = filesToSync(manifest);
+
+            return findOutdatedFiles(filesToSync).thenApply(filesToDownload -> {
+                final Set<ServerManifest.ModFileData> outdatedFiles = Set.copyOf(filesToDownload);
+                filesToSync.stream().filter(file -> !outdatedFiles.contains(file)).forEach(this::markReady);
+                return filesToDownload;
+            }).thenCompose(filesToDownload -> downloadFiles(host, manifest, filesToDownload)).thenApply(unused -> finishSync(manifest));
+        }).whenComplete((manifest, throwable) -> checksumCache.save());
+    }
+
+    private CompletableFuture<Void> downloadFiles(final String host, final ServerManifest manifest, final List<ServerManifest.ModFileData> filesToDownload) {
+        return findMirrors(host, manifest, filesToDownload).thenCompose(mirrors -> {
             LOGGER.debug("Downloading {} of {} files from manifest", filesToDownload.size(), manifest.files().size());
+            final DownloadProgress progress = new DownloadProgress(filesToDownload, LaunchProgressReporter::add);
 
-            return sequential(Iterators.transform(filesToDownload.iterator(), file -> downloadFile(host, file))).thenApply(unused -> {
-                LOGGER.debug("Finished downloading files");
-                return manifest;
+            final List<DownloadScheduler.Task> tasks = new ArrayList<>();
+            final List<ServerManifest.ModFileData> smallFiles = new ArrayList<>();
+            for (final ServerManifest.ModFileData file : filesToDownload) {
+                // Files from older servers have no size, and are never bundled
+                if (file.size() > 0 && file.size() <= bundleThreshold) {
+                    smallFiles.add(file);
+                } else {
+                    tasks.add(new DownloadScheduler.Task(file.fileName(), file.size(), () -> downloadFile(host, mirrors, file, progress)));
+                }
+            }
+            for (final List<ServerManifest.ModFileData> bundle : splitIntoBundles(smallFiles)) {
+                final long size = bundle.stream().mapToLong(ServerManifest.ModFileData::size).sum();
+                tasks.add(new DownloadScheduler.Task("bundle of " + bundle.size() + " files", size, () -> downloadBundle(host, mirrors, bundle, progress)));
+            }
+            return downloadScheduler.run(tasks).thenRun(() -> {
+                if (!filesToDownload.isEmpty()) {
+                    progress.finish();
+                }
             });
         });
     }
 
-    private static CompletableFuture<?> sequential(final Iterator<CompletableFuture<?>> iterator) {
-        if (iterator.hasNext()) {
-            return iterator.next().thenCompose(unused -> sequential(iterator));
+    private ServerManifest finishSync(final ServerManifest manifest) {
+        LOGGER.debug("Finished downloading files");
+        if (fastStart && !staleFilesInUse) {
+            saveCachedManifest(VERIFIED_MANIFEST_FILE_NAME, manifest.toJson());
         }
-        return CompletableFuture.completedFuture(null);
+        return manifest;
+    }
+
+    /**
+     * Finds which of the configured mirrors can take some of the downloads off the server. Mirrors are only checked
+     * when there is something to download, and the manifest always comes from the server itself.
+     */
+    private CompletableFuture<MirrorSet> findMirrors(final String host, final ServerManifest manifest, final List<ServerManifest.ModFileData> filesToDownload) {
+        if (mirrorHosts.isEmpty() || filesToDownload.isEmpty()) {
+            return CompletableFuture.completedFuture(MirrorSet.of(host));
+        }
+        LaunchProgressReporter.add("Checking " + mirrorHosts.size() + " mirrors");
+        return MirrorSet.probe(client, USER_AGENT, host, mirrorHosts, ServerManifest.hash(manifest.toJson()));
     }
 
     private CompletableFuture<ServerManifest> downloadManifest(final String host) {
         LOGGER.info("Requesting server manifest from: {}", host);
         LaunchProgressReporter.add("Requesting server manifest from: " + host);
 
-        HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/servermanifest.json"))
+        final String cachedManifest = readCachedManifest(MANIFEST_FILE_NAME);
+        ServerManifest previousManifest = null;
+        if (cachedManifest != null) {
+            try {
+                previousManifest = ServerManifest.parse(cachedManifest).result().orElse(null);
+            } catch (final JsonParseException e) {
+                LOGGER.warn("Ignoring malformed cached server manifest", e);
+            }
+        }
+        this.previousManifest = previousManifest;
+        if (previousManifest != null) {
+            return downloadManifestDiff(host, cachedManifest, previousManifest)
+                    .thenCompose(manifest -> manifest != null ? CompletableFuture.completedFuture(manifest) : downloadFullManifest(host, cachedManifest));
+        }
+        return downloadFullManifest(host, cachedManifest);
+    }
+
+    /**
+     * Asks the server only for what changed since our cached manifest, which is much less to send and parse than the
+     * whole manifest when a large pack changes a little.
+     *
+     * @return the current manifest, or {@code null} if the server cannot tell us what changed, such as when our cached
+     * manifest is too old or the server does not support diffs
+     */
+    private CompletableFuture<ServerManifest> downloadManifestDiff(final String host, final String cachedManifest, final ServerManifest previousManifest) {
+        final HashCode cachedHash = ServerManifest.hash(cachedManifest);
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(host + ManifestDiff.PATH + cachedHash))
                 .header("User-Agent", USER_AGENT)
                 .GET()
                 .build();
         return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
-                .thenApply(SimpleHttpClient::parseManifest);
+                .thenApply(response -> {
+                    if (response.statusCode() == 304) {
+                        LOGGER.info("Server manifest has not changed since it was last downloaded");
+                        return previousManifest;
+                    } else if (response.statusCode() != 200) {
+                        LOGGER.debug("Server has no manifest diff from {} (response code {}), requesting full manifest", cachedHash, response.statusCode());
+                        return null;
+                    }
+                    return applyManifestDiff(cachedHash, previousManifest, response.body());
+                });
     }
 
-    private static ServerManifest parseManifest(HttpResponse<String> response) {
-        DataResult<ServerManifest> result = ServerManifest.parse(response.body());
+    @Nullable
+    private ServerManifest applyManifestDiff(final HashCode cachedHash, final ServerManifest previousManifest, final String json) {
+        final ManifestDiff diff;
+        try {
+            diff = ManifestDiff.parse(json).result().orElse(null);
+        } catch (final JsonParseException e) {
+            LOGGER.warn("Ignoring malformed server manifest diff", e);
+            return null;
+        }
+        if (diff == null || !diff.base().equals(cachedHash)) {
+            LOGGER.warn("Ignoring malformed server manifest diff");
+            return null;
+        }
+        final DataResult<ServerManifest> result = diff.applyTo(previousManifest);
+        final ServerManifest manifest = result.result().orElse(null);
+        if (manifest == null) {
+            LOGGER.warn("Failed to apply server manifest diff: {}", result.error().orElseThrow().message());
+            return null;
+        }
+        // The server hashes exactly what it would send in full, so this also checks that we rebuilt it the same way
+        final String manifestJson = manifest.toJson();
+        if (!ServerManifest.hash(manifestJson).equals(diff.target())) {
+            LOGGER.warn("Server manifest diff did not produce the expected manifest, requesting full manifest");
+            return null;
+        }
+        LOGGER.info("Updated server manifest from diff: {} added, {} changed, {} removed", diff.added().size(), diff.changed().size(), diff.removed().size());
+        saveCachedManifest(MANIFEST_FILE_NAME, manifestJson);
+        return manifest;
+    }
+
+    private CompletableFuture<ServerManifest> downloadFullManifest(final String host, @Nullable final String cachedManifest) {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(host + "/servermanifest.json"))
+                .header("User-Agent", USER_AGENT)
+                .header(ContentEncodings.HEADER, ContentEncodings.ACCEPTED)
+                .GET();
+        if (cachedManifest != null) {
+            request.header("If-None-Match", "\"" + ServerManifest.hash(cachedManifest) + "\"");
+        }
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() == 304 && cachedManifest != null) {
+                        LOGGER.info("Server manifest has not changed since it was last downloaded");
+                        return parseManifest(cachedManifest);
+                    } else if (response.statusCode() != 200) {
+                        throw new IllegalStateException("Unexpected response code " + response.statusCode() + " while requesting server manifest");
+                    }
+                    final String json;
+                    try {
+                        json = new String(ContentEncodings.decode(response.headers(), response.body()), StandardCharsets.UTF_8);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException("Failed to decode server manifest", e);
+                    }
+                    final ServerManifest manifest = parseManifest(json);
+                    saveCachedManifest(MANIFEST_FILE_NAME, json);
+                    return manifest;
+                });
+    }
+
+    private static ServerManifest parseManifest(final String json) {
+        DataResult<ServerManifest> result = ServerManifest.parse(json);
         return result.result().orElseThrow(() -> new IllegalStateException("Manifest was malformed: " + result.error().orElseThrow()));
     }
 
-    private CompletableFuture<?> downloadFile(final String host, final ServerManifest.ModFileData modFile) {
+    @Nullable
+    private String readCachedManifest(final String fileName) {
+        final Path path = outputDir.resolve(fileName);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return Files.readString(path, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to read cached server manifest {}", path, e);
+            return null;
+        }
+    }
+
+    private void saveCachedManifest(final String fileName, final String json) {
+        // Stored exactly as served, so that its hash matches the server's ETag
+        final Path path = outputDir.resolve(fileName);
+        try {
+            Files.writeString(path, json, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to save server manifest to {}", path, e);
+        }
+    }
+
+    private void deleteVerifiedManifest() {
+        final Path path = outputDir.resolve(VERIFIED_MANIFEST_FILE_NAME);
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to delete verified server manifest {}", path, e);
+        }
+    }
+
+    /**
+     * Files that have not changed on disk since they were last verified are trusted. Of the rest, those that the server
+     * published a fast hash for are compared by that, so that only files which are actually replaced need a checksum,
+     * which they get while being downloaded. Paranoid verification checksums every file instead.
+     */
+    private CompletableFuture<List<ServerManifest.ModFileData>> findOutdatedFiles(final List<ServerManifest.ModFileData> files) {
+        final List<Path> paths = files.stream().map(this::resolvePath).toList();
+        if (paranoidVerification) {
+            return checksumCache.computeAll(paths).thenApply(checksums -> files.stream()
+                    .filter(file -> !isUpToDate(file, file.checksum(), checksums.get(resolvePath(file))))
+                    .toList());
+        }
+
+        final Map<Path, HashCode> cachedChecksums = checksumCache.getAllCached(paths);
+        final List<Path> fastHashPaths = new ArrayList<>();
+        final List<Path> checksumPaths = new ArrayList<>();
+        for (final ServerManifest.ModFileData file : files) {
+            final Path path = resolvePath(file);
+            if (cachedChecksums.containsKey(path)) {
+                continue;
+            }
+            if (file.hash(HashAlgorithm.FAST) != null) {
+                fastHashPaths.add(path);
+            } else {
+                checksumPaths.add(path);
+            }
+        }
+        if (!fastHashPaths.isEmpty()) {
+            LOGGER.debug("Checking {} files that changed on disk by their {} hash", fastHashPaths.size(), HashAlgorithm.FAST.id());
+        }
+        final CompletableFuture<Map<Path, HashCode>> fastHashes = checksumCache.getOrComputeAll(fastHashPaths, HashAlgorithm.FAST);
+        final CompletableFuture<Map<Path, HashCode>> checksums = checksumCache.getOrComputeAll(checksumPaths);
+        return fastHashes.thenCombine(checksums, (existingFastHashes, existingChecksums) -> {
+            final List<ServerManifest.ModFileData> outdatedFiles = new ArrayList<>();
+            for (final ServerManifest.ModFileData file : files) {
+                final Path path = resolvePath(file);
+                if (cachedChecksums.containsKey(path)) {
+                    if (!isUpToDate(file, file.checksum(), cachedChecksums.get(path))) {
+                        outdatedFiles.add(file);
+                    }
+                } else if (existingFastHashes.containsKey(path)) {
+                    if (isUpToDate(file, file.hash(HashAlgorithm.FAST), existingFastHashes.get(path))) {
+                        // The same content as the server's copy, so it has the same checksum
+                        checksumCache.put(path, file.checksum());
+                    } else {
+                        outdatedFiles.add(file);
+                    }
+                } else if (!isUpToDate(file, file.checksum(), existingChecksums.get(path))) {
+                    outdatedFiles.add(file);
+                }
+            }
+            return outdatedFiles;
+        });
+    }
+
+    private static boolean isUpToDate(final ServerManifest.ModFileData file, final HashCode expected, @Nullable final HashCode actual) {
+        if (Objects.equals(expected, actual)) {
+            LOGGER.debug("Found existing file {} - skipping", file.fileName());
+            return true;
+        }
+        return false;
+    }
+
+    private static List<List<ServerManifest.ModFileData>> splitIntoBundles(final List<ServerManifest.ModFileData> files) {
+        final List<List<ServerManifest.ModFileData>> bundles = new ArrayList<>();
+        List<ServerManifest.ModFileData> bundle = new ArrayList<>();
+        long bundleSize = 0;
+        for (final ServerManifest.ModFileData file : files) {
+            if (!bundle.isEmpty() && (bundleSize + file.size() > MAX_BUNDLE_SIZE || bundle.size() >= BundleFormat.MAX_FILES)) {
+                bundles.add(bundle);
+                bundle = new ArrayList<>();
+                bundleSize = 0;
+            }
+            bundle.add(file);
+            bundleSize += file.size();
+        }
+        if (!bundle.isEmpty()) {
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    /**
+     * Runs on a download thread, and throws if interrupted.
+     */
+    private void downloadBundle(final String host, final MirrorSet mirrors, final List<ServerManifest.ModFileData> files, final DownloadProgress progress) {
+        final List<ServerManifest.ModFileData> missingFiles = sharedStore != null
+                ? files.stream().filter(file -> !copyFromSharedStore(file, resolvePath(file), progress)).toList()
+                : files;
+        if (missingFiles.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Requesting bundle of {} files", missingFiles.size());
+        LaunchProgressReporter.add("Requesting bundle of " + missingFiles.size() + " files");
+
+        final Set<ServerManifest.ModFileData> installed;
+        try {
+            installed = bundleDownloader.download(URI.create(host + BundleFormat.PATH), missingFiles, this::resolvePath, progress);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while downloading bundle", e);
+        }
+        for (final ServerManifest.ModFileData file : installed) {
+            final Path targetPath = resolvePath(file);
+            checksumCache.put(targetPath, file.checksum());
+            if (sharedStore != null) {
+                sharedStore.add(file.checksum(), targetPath);
+            }
+            progress.file(file).finish();
+            markReady(file);
+        }
+        // Anything the bundle did not bring is small, so fetching it one by one on this thread is quick enough
+        for (final ServerManifest.ModFileData file : missingFiles) {
+            if (!installed.contains(file)) {
+                downloadFile(host, mirrors, file, progress);
+            }
+        }
+    }
+
+    /**
+     * Runs on a download thread, and throws if interrupted.
+     */
+    private void downloadFile(final String host, final MirrorSet mirrors, final ServerManifest.ModFileData modFile, final DownloadProgress progress) {
         final Path targetPath = resolvePath(modFile);
+        if (sharedStore != null && copyFromSharedStore(modFile, targetPath, progress)) {
+            LOGGER.info("Found {} in shared store - skipping download", modFile.fileName());
+            return;
+        }
+        downloadFromServer(host, mirrors, modFile, targetPath, progress.file(modFile));
+        if (sharedStore != null) {
+            sharedStore.add(modFile.checksum(), targetPath);
+        }
+        markReady(modFile);
+    }
 
-        final HashCode existingChecksum = FileChecksumValidator.computeChecksumFor(targetPath);
-        if (Objects.equals(modFile.checksum(), existingChecksum)) {
-            LOGGER.debug("Found existing file {} - skipping", modFile.fileName());
-            return CompletableFuture.completedFuture(null);
+    private boolean copyFromSharedStore(final ServerManifest.ModFileData modFile, final Path targetPath, final DownloadProgress progress) {
+        if (!sharedStore.materialise(modFile.checksum(), targetPath)) {
+            return false;
         }
+        // Only read the first time an instance sees the file, as hardlinks share the stat the cache is keyed on
+        if (!modFile.checksum().equals(checksumCache.getOrCompute(targetPath))) {
+            LOGGER.warn("Shared store copy of {} is corrupt, downloading it again", modFile.fileName());
+            sharedStore.remove(modFile.checksum());
+            return false;
+        }
+        progress.file(modFile).finish();
+        markReady(modFile);
+        return true;
+    }
 
+    private void downloadFromServer(final String host, final MirrorSet mirrors, final ServerManifest.ModFileData modFile, final Path targetPath, final DownloadProgress.FileProgress progress) {
         final String fileName = modFile.fileName();
         LOGGER.info("Requesting file: {}", fileName);
-        LaunchProgressReporter.add("Requesting file: " + fileName);
 
-        final URI uri = URI.create(host + "/files/" + URLEncoder.encode(fileName, StandardCharsets.UTF_8).replaceAll("\\+", "%20"));
-        final HttpRequest request = HttpRequest.newBuilder(uri)
-                .header("User-Agent", USER_AGENT)
-                .GET()
-                .build();
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(targetPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
-                .thenAccept(response -> LaunchProgressReporter.add("Finished downloading file: " + fileName));
+        final List<Path> deltaSeeds = deltaDownloader != null ? findDeltaSeeds(modFile) : List.of();
+        // Only pack servers have chunk indexes, so deltas always come from the server itself
+        if (!deltaSeeds.isEmpty() && deltaDownloader.tryDownload(modFile, fileUri(host, "/files/", fileName), fileUri(host, "/chunks/", fileName), targetPath, deltaSeeds, progress)) {
+            checksumCache.put(targetPath, modFile.checksum());
+            progress.finish();
+            return;
+        }
+        downloadFullFile(mirrors, modFile, targetPath, progress);
+    }
+
+    private void downloadFullFile(final MirrorSet mirrors, final ServerManifest.ModFileData modFile, final Path targetPath, final DownloadProgress.FileProgress progress) {
+        try {
+            final boolean split = splitDownloader != null && modFile.size() >= splitThreshold
+                    && splitDownloader.tryDownload(modFile, mirrors, mirror -> fileUri(mirror.host(), "/files/", modFile.fileName()), targetPath, progress);
+            if (!split) {
+                downloadFromMirrors(mirrors, modFile, targetPath, progress);
+            }
+            checksumCache.put(targetPath, modFile.checksum());
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to download file " + modFile.fileName(), e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while downloading file " + modFile.fileName(), e);
+        }
+        progress.finish();
+    }
+
+    /**
+     * Downloads the whole file from the least busy host, moving on to another if a mirror fails. Every copy is checked
+     * against the server's checksum, so a mirror serving the wrong content is treated as failing.
+     */
+    private void downloadFromMirrors(final MirrorSet mirrors, final ServerManifest.ModFileData modFile, final Path targetPath, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        while (true) {
+            final MirrorSet.Mirror mirror = mirrors.acquire();
+            final long startTime = System.nanoTime();
+            try {
+                fileDownloader.download(modFile, fileUri(mirror.host(), "/files/", modFile.fileName()), targetPath, progress);
+                mirrors.release(mirror, modFile.size(), System.nanoTime() - startTime);
+                return;
+            } catch (final IOException e) {
+                mirrors.fail(mirror, e);
+                if (mirror.isPrimary()) {
+                    throw e;
+                }
+                LOGGER.warn("Download of {} from mirror {} failed, trying another host", modFile.fileName(), mirror.host(), e);
+            } catch (final InterruptedException e) {
+                mirrors.skip(mirror);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Finds local files likely to share content with the given file: the outdated copy under the same name, and any
+     * older versions of the same mod from the last manifest that are still on disk.
+     */
+    private List<Path> findDeltaSeeds(final ServerManifest.ModFileData modFile) {
+        final Set<Path> seeds = new LinkedHashSet<>();
+        final Path targetPath = resolvePath(modFile);
+        if (Files.isRegularFile(targetPath)) {
+            seeds.add(targetPath);
+        }
+        final ServerManifest previousManifest = this.previousManifest;
+        if (previousManifest != null) {
+            for (final ServerManifest.ModFileData previousFile : previousManifest.files()) {
+                if (!previousFile.rootModId().equals(modFile.rootModId())) {
+                    continue;
+                }
+                final Path path = DirHandler.resolveDirectChild(outputDir, previousFile.fileName());
+                if (path != null && Files.isRegularFile(path)) {
+                    seeds.add(path);
+                }
+            }
+        }
+        return List.copyOf(seeds);
+    }
+
+    private static String normaliseHost(final String host) {
+        return host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
+    }
+
+    private static URI fileUri(final String host, final String prefix, final String fileName) {
+        return URI.create(host + prefix + URLEncoder.encode(fileName, StandardCharsets.UTF_8).replaceAll("\\+", "%20"));
     }
 
     private Path resolvePath(final ServerManifest.ModFileData modFile) {
@@ -125,13 +702,38 @@ public class SimpleHttpClient {
         return path;
     }
 
+    private void markReady(final ServerManifest.ModFileData modFile) {
+        readyFiles.computeIfAbsent(modFile.fileName(), fileName -> new CompletableFuture<>()).complete(resolvePath(modFile));
+    }
+
+    /**
+     * Blocks until we know which manifest is being synced, which is usually long before its files are.
+     *
+     * @return the manifest, or {@code null} if the sync failed before we got it
+     */
     @Nullable
-    ServerManifest waitForResult() {
+    ServerManifest waitForManifest() {
         try {
-            return downloadJob.join();
-        } catch (Throwable t) {
-            LOGGER.error("Encountered an exception while downloading server mods", t);
-            return null;
+            CompletableFuture.anyOf(syncedManifest, downloadJob).join();
+        } catch (CompletionException e) {
+            LOGGER.error("Encountered an exception while downloading server mods", e.getCause());
+        }
+        return syncedManifest.getNow(null);
+    }
+
+    /**
+     * Blocks until the given file from the manifest is in place and verified.
+     *
+     * @return its path, or {@code null} if the sync failed before it was
+     */
+    @Nullable
+    Path waitForFile(final ServerManifest.ModFileData modFile) {
+        final CompletableFuture<Path> file = readyFiles.computeIfAbsent(modFile.fileName(), fileName -> new CompletableFuture<>());
+        try {
+            CompletableFuture.anyOf(file, downloadJob).join();
+        } catch (CompletionException e) {
+            LOGGER.error("Encountered an exception while downloading server mods", e.getCause());
         }
+        return file.getNow(null);
     }
 }
@@ -0,0 +1,191 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Downloads a large file as several ranges at once, each from whichever host is least busy, so that one file can use
+ * the bandwidth of every mirror. A range that fails is fetched again from another host. The assembled file is verified
+ * against the manifest checksum before it replaces the target, and any failure leaves the target untouched so that
+ * the caller can fall back to a plain download.
+ * <p>
+ * Ranges run in slots of the {@link DownloadScheduler} that no other download is waiting for, so a split file never
+ * takes more connections than the download limit allows.
+ */
+class SplitDownloader {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Below this a range costs more in round trips than it gains from running in parallel
+    private static final long MIN_RANGE_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_RANGES = 8;
+
+    private final HttpClient client;
+    private final String userAgent;
+    private final DownloadScheduler scheduler;
+
+    SplitDownloader(final HttpClient client, final String userAgent, final DownloadScheduler scheduler) {
+        this.client = client;
+        this.userAgent = userAgent;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Blocks until the download completes. Must be called from a task of the scheduler, whose slot covers one of
+     * the ranges while it waits. Interrupting the calling thread, as the scheduler does when another download fails, interrupts the
+     * downloads of every range.
+     *
+     * @param fileUri where to fetch the file from on a given host
+     * @return {@code true} if the target was replaced with a verified copy of the file
+     */
+    boolean tryDownload(final ServerManifest.ModFileData modFile, final MirrorSet mirrors, final Function<MirrorSet.Mirror, URI> fileUri, final Path targetPath, final DownloadProgress.FileProgress progress) throws InterruptedException {
+        final int maxRanges = (int) Math.min(Math.min(mirrors.available(), MAX_RANGES), modFile.size() / MIN_RANGE_SIZE);
+        if (maxRanges < 2) {
+            return false;
+        }
+        final int spareSlots = scheduler.tryAcquireSpareSlots(maxRanges - 1);
+        try {
+            return spareSlots > 0 && download(modFile, mirrors, fileUri, targetPath, progress, spareSlots + 1);
+        } finally {
+            scheduler.releaseSpareSlots(spareSlots);
+        }
+    }
+
+    private boolean download(final ServerManifest.ModFileData modFile, final MirrorSet mirrors, final Function<MirrorSet.Mirror, URI> fileUri, final Path targetPath, final DownloadProgress.FileProgress progress, final int rangeCount) throws InterruptedException {
+        final Path tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".split");
+        try {
+            progress.restart(0);
+            try (final FileChannel output = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final List<Future<?>> ranges = new ArrayList<>();
+                final long rangeSize = modFile.size() / rangeCount;
+                for (int i = 0; i < rangeCount; i++) {
+                    final long start = i * rangeSize;
+                    final long end = i == rangeCount - 1 ? modFile.size() : start + rangeSize;
+                    final FutureTask<Void> range = new FutureTask<>(() -> fetchRange(modFile, mirrors, fileUri, output, start, end, progress), null);
+                    scheduler.executor().execute(range);
+                    ranges.add(range);
+                }
+                try {
+                    for (final Future<?> range : ranges) {
+                        range.get();
+                    }
+                } finally {
+                    // Stops the other ranges once one has failed, or when we were interrupted
+                    ranges.forEach(range -> range.cancel(true));
+                }
+            }
+            final HashCode checksum = FileChecksumValidator.computeChecksumFor(tempPath);
+            if (!modFile.checksum().equals(checksum)) {
+                LOGGER.warn("Split download of {} produced checksum {}, expected {}", modFile.fileName(), checksum, modFile.checksum());
+                return false;
+            }
+            try {
+                Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.info("Downloaded {} in {} ranges", modFile.fileName(), rangeCount);
+            return true;
+        } catch (final IOException | UncheckedIOException | ExecutionException e) {
+            LOGGER.warn("Split download of {} failed, falling back to a single download", modFile.fileName(), e);
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (final IOException e) {
+                LOGGER.debug("Failed to delete {}", tempPath, e);
+            }
+        }
+    }
+
+    /**
+     * Fetches the range from one host after another until one of them sends all of it.
+     */
+    private void fetchRange(final ServerManifest.ModFileData modFile, final MirrorSet mirrors, final Function<MirrorSet.Mirror, URI> fileUri, final FileChannel output, final long start, final long end, final DownloadProgress.FileProgress progress) {
+        // Enough attempts to try every host, and the server once more
+        final int maxAttempts = mirrors.available() + 1;
+        for (int attempt = 1; ; attempt++) {
+            final MirrorSet.Mirror mirror = mirrors.acquire();
+            final long startTime = System.nanoTime();
+            final AtomicLong received = new AtomicLong();
+            try {
+                tryFetchRange(fileUri.apply(mirror), output, start, end, received, progress);
+                mirrors.release(mirror, end - start, System.nanoTime() - startTime);
+                return;
+            } catch (final ServerBusyException e) {
+                mirrors.skip(mirror);
+                progress.discard(received.get());
+                if (attempt >= maxAttempts) {
+                    throw new UncheckedIOException(e);
+                }
+            } catch (final IOException e) {
+                mirrors.fail(mirror, e);
+                progress.discard(received.get());
+                if (attempt >= maxAttempts) {
+                    throw new UncheckedIOException(e);
+                }
+                LOGGER.debug("Range {}-{} of {} failed from {}, trying another host", start, end, modFile.fileName(), mirror, e);
+            } catch (final InterruptedException e) {
+                mirrors.skip(mirror);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while downloading " + modFile.fileName(), e);
+            }
+        }
+    }
+
+    private void tryFetchRange(final URI uri, final FileChannel output, final long start, final long end, final AtomicLong received, final DownloadProgress.FileProgress progress) throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("User-Agent", userAgent)
+                .header("Range", "bytes=" + start + "-" + (end - 1))
+                .GET()
+                .build();
+        final HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (final InputStream body = response.body()) {
+            if (response.statusCode() == ServerBusyException.STATUS) {
+                throw new ServerBusyException("Host is busy, cannot fetch range from " + uri + " yet", response);
+            }
+            final String expectedRange = "bytes " + start + "-" + (end - 1) + "/";
+            if (response.statusCode() != 206 || !response.headers().firstValue("Content-Range").orElse("").startsWith(expectedRange)) {
+                throw new IOException("Host did not honour range request for " + uri + ": " + response.statusCode());
+            }
+            final byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            while (position < end) {
+                final int read = body.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (read == -1) {
+                    throw new IOException("Range response for " + uri + " ended early");
+                }
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    position += output.write(data, position);
+                }
+                received.addAndGet(read);
+                progress.received(read);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import javax.annotation.Nullable;
+
+/**
+ * A single inclusive byte range requested through a {@code Range} header.
+ */
+record ByteRange(long start, long end) {
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private static final String UNIT = "bytes=";
+
+    /**
+     * @return the requested range clamped to the content, {@link #UNSATISFIABLE} if it lies outside the content, or
+     * {@code null} if the header should be ignored and the full content sent instead
+     */
+    @Nullable
+    static ByteRange parse(final String header, final long contentLength) {
+        if (!header.startsWith(UNIT) || header.indexOf(',') != -1) {
+            // Multipart responses are not worth supporting, so send everything as allowed by RFC 9110
+            return null;
+        }
+        final String spec = header.substring(UNIT.length()).trim();
+        final int separator = spec.indexOf('-');
+        if (separator == -1) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, separator).trim();
+            final String last = spec.substring(separator + 1).trim();
+            if (first.isEmpty()) {
+                final long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || contentLength == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(contentLength - suffixLength, 0), contentLength - 1);
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? contentLength - 1 : Long.parseLong(last);
+            if (end < start && !last.isEmpty()) {
+                // Not a valid range at all, which RFC 9110 says to ignore rather than reject
+                return null;
+            }
+            if (start >= contentLength) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(start, Math.min(end, contentLength - 1));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    String toContentRange(final long contentLength) {
+        return "bytes " + start + "-" + end + "/" + contentLength;
+    }
+}
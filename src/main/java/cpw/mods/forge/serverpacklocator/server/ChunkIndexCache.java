@@ -0,0 +1,121 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.logging.LogUtils;
+import cpw.mods.forge.serverpacklocator.ChunkIndex;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of the {@link ChunkIndex} of each pack file, keyed by checksum, which clients use for delta sync.
+ * Indexes are built in the background after the manifest, and until one is ready clients fall back to a full download.
+ */
+class ChunkIndexCache {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Chunk Indexer - %d")
+            .setDaemon(true)
+            .build());
+
+    private static final String EXTENSION = ".json";
+
+    private final Path directory;
+    private final Map<HashCode, Path> indexes = new ConcurrentHashMap<>();
+
+    ChunkIndexCache(final Path directory) {
+        this.directory = DirHandler.createDirIfNeeded(directory);
+        scan();
+    }
+
+    @Nullable
+    Path findIndex(final HashCode checksum) {
+        return indexes.get(checksum);
+    }
+
+    /**
+     * Builds any missing indexes for the given files in the background, and removes those for files no longer served.
+     */
+    void update(final Map<HashCode, Path> files) {
+        EXECUTOR.execute(() -> {
+            int built = 0;
+            for (final Map.Entry<HashCode, Path> entry : files.entrySet()) {
+                if (!indexes.containsKey(entry.getKey()) && build(entry.getKey(), entry.getValue())) {
+                    built++;
+                }
+            }
+            for (final HashCode checksum : Set.copyOf(indexes.keySet())) {
+                if (!files.containsKey(checksum)) {
+                    remove(checksum);
+                }
+            }
+            LOGGER.debug("Built {} new chunk indexes, {} cached", built, indexes.size());
+        });
+    }
+
+    private boolean build(final HashCode checksum, final Path source) {
+        final Path target = directory.resolve(checksum + EXTENSION);
+        final Path tempPath = directory.resolve(checksum + EXTENSION + ".tmp");
+        try {
+            Files.writeString(tempPath, ChunkIndex.of(source).toJson(), StandardCharsets.UTF_8);
+            try {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            indexes.put(checksum, target);
+            return true;
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to build chunk index for {}", source, e);
+            return false;
+        }
+    }
+
+    private void remove(final HashCode checksum) {
+        final Path path = indexes.remove(checksum);
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to remove stale chunk index {}", path, e);
+        }
+    }
+
+    private void scan() {
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                final String fileName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+                try {
+                    if (fileName.endsWith(EXTENSION)) {
+                        indexes.put(HashCode.fromString(fileName.substring(0, fileName.length() - EXTENSION.length())), path);
+                    } else if (fileName.endsWith(".tmp")) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (final IOException e) {
+                    LOGGER.warn("Failed to remove leftover temporary file {}", path, e);
+                } catch (final IllegalArgumentException e) {
+                    LOGGER.debug("Ignoring unexpected file in chunk index cache: {}", path);
+                }
+            });
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to scan chunk index cache {}", directory, e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.logging.LogUtils;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bounded on-disk cache of gzip-compressed pack files, keyed by checksum. Variants are built once on a background
+ * thread, never per request, and files that do not compress meaningfully are remembered so that they are not tried
+ * again.
+ */
+class CompressionCache {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Compressor - %d")
+            .setDaemon(true)
+            .build());
+
+    static final String GZIP = "gzip";
+
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final String INCOMPRESSIBLE_EXTENSION = ".none";
+    // Only keep a variant if it saves at least this fraction of the original size
+    private static final double MIN_SAVING = 0.1;
+
+    private final Path directory;
+    private final long maxSize;
+    private final Map<HashCode, Path> variants = new ConcurrentHashMap<>();
+    private final Set<HashCode> incompressible = ConcurrentHashMap.newKeySet();
+    // Only touched by the compressor thread once constructed
+    private long totalSize;
+
+    CompressionCache(final Path directory, final long maxSize) {
+        this.directory = DirHandler.createDirIfNeeded(directory);
+        this.maxSize = maxSize;
+        scan();
+    }
+
+    @Nullable
+    Path findVariant(final HashCode checksum) {
+        return variants.get(checksum);
+    }
+
+    /**
+     * Builds any missing variants for the given files in the background, then trims the cache back down to its size
+     * limit, preferring to keep variants for the given files.
+     *
+     * @return completes once the cache has been updated
+     */
+    CompletableFuture<Void> update(final Map<HashCode, Path> files) {
+        return CompletableFuture.runAsync(() -> {
+            int built = 0;
+            for (final Map.Entry<HashCode, Path> entry : files.entrySet()) {
+                if (totalSize >= maxSize) {
+                    LOGGER.debug("Compression cache is full, not building any more variants");
+                    break;
+                }
+                if (!variants.containsKey(entry.getKey()) && !incompressible.contains(entry.getKey())) {
+                    if (compress(entry.getKey(), entry.getValue())) {
+                        built++;
+                    }
+                }
+            }
+            trim(files.keySet());
+            LOGGER.debug("Built {} new compressed variants, {} cached", built, variants.size());
+        }, EXECUTOR);
+    }
+
+    /**
+     * Compresses a small in-memory body, returning {@code null} if that would not save enough to be worth it.
+     */
+    @Nullable
+    static byte[] compress(final byte[] bytes) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+        try (final OutputStream gzip = newGzipStream(output)) {
+            gzip.write(bytes);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return isWorthwhile(output.size(), bytes.length) ? output.toByteArray() : null;
+    }
+
+    static boolean acceptsGzip(final Collection<String> acceptEncodingHeaders) {
+        for (final String header : acceptEncodingHeaders) {
+            for (final String coding : header.split(",")) {
+                final String[] parts = coding.trim().split(";");
+                final String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (!name.equals(GZIP) && !name.equals("*")) {
+                    continue;
+                }
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private boolean compress(final HashCode checksum, final Path source) {
+        final Path target = directory.resolve(checksum + GZIP_EXTENSION);
+        final Path tempPath = directory.resolve(checksum + GZIP_EXTENSION + ".tmp");
+        try {
+            // The file may have changed since it was hashed, and a variant is served in place of the content with this
+            // checksum, so only keep it if it was compressed from exactly that content
+            final MessageDigest digest = FileChecksumValidator.newDigest();
+            final long sourceSize;
+            try (final InputStream input = new DigestInputStream(Files.newInputStream(source), digest); final OutputStream output = newGzipStream(Files.newOutputStream(tempPath))) {
+                sourceSize = input.transferTo(output);
+            }
+            if (!HashCode.fromBytes(digest.digest()).equals(checksum)) {
+                LOGGER.warn("Not compressing {}, as it changed since it was hashed", source);
+                Files.delete(tempPath);
+                return false;
+            }
+            if (!isWorthwhile(Files.size(tempPath), sourceSize)) {
+                Files.delete(tempPath);
+                Files.writeString(directory.resolve(checksum + INCOMPRESSIBLE_EXTENSION), "");
+                incompressible.add(checksum);
+                return false;
+            }
+            try {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            variants.put(checksum, target);
+            totalSize += Files.size(target);
+            return true;
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to compress {}", source, e);
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (final IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    private void trim(final Set<HashCode> retained) {
+        final List<Map.Entry<HashCode, Path>> entries = variants.entrySet().stream()
+                // Evict variants for files that are no longer served first, then the oldest
+                .sorted(Comparator.<Map.Entry<HashCode, Path>, Boolean>comparing(entry -> retained.contains(entry.getKey()))
+                        .thenComparing(entry -> lastModified(entry.getValue())))
+                .toList();
+        totalSize = entries.stream().mapToLong(entry -> sizeOf(entry.getValue())).sum();
+        for (final Map.Entry<HashCode, Path> entry : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            final long size = sizeOf(entry.getValue());
+            variants.remove(entry.getKey());
+            try {
+                Files.deleteIfExists(entry.getValue());
+                totalSize -= size;
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to evict compressed variant {}", entry.getValue(), e);
+            }
+        }
+
+        final Set<HashCode> staleMarkers = incompressible.stream().filter(checksum -> !retained.contains(checksum)).collect(Collectors.toSet());
+        for (final HashCode checksum : staleMarkers) {
+            incompressible.remove(checksum);
+            try {
+                Files.deleteIfExists(directory.resolve(checksum + INCOMPRESSIBLE_EXTENSION));
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to remove stale compression marker for {}", checksum, e);
+            }
+        }
+    }
+
+    private void scan() {
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                final String fileName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+                try {
+                    if (fileName.endsWith(GZIP_EXTENSION)) {
+                        variants.put(HashCode.fromString(fileName.substring(0, fileName.length() - GZIP_EXTENSION.length())), path);
+                        totalSize += sizeOf(path);
+                    } else if (fileName.endsWith(INCOMPRESSIBLE_EXTENSION)) {
+                        incompressible.add(HashCode.fromString(fileName.substring(0, fileName.length() - INCOMPRESSIBLE_EXTENSION.length())));
+                    } else if (fileName.endsWith(".tmp")) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (final IOException e) {
+                    LOGGER.warn("Failed to remove leftover temporary file {}", path, e);
+                } catch (final IllegalArgumentException e) {
+                    LOGGER.debug("Ignoring unexpected file in compression cache: {}", path);
+                }
+            });
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to scan compression cache {}", directory, e);
+        }
+    }
+
+    private static boolean isWorthwhile(final long compressedSize, final long originalSize) {
+        return compressedSize <= originalSize * (1.0 - MIN_SAVING);
+    }
+
+    private static OutputStream newGzipStream(final OutputStream output) throws IOException {
+        return new GZIPOutputStream(output, 64 * 1024) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+    }
+
+    private static long sizeOf(final Path path) {
+        try {
+            return Files.size(path);
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileTime lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (final IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.ManifestDiff;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Records the endpoint, status and timings of every request on a connection. Sits after the aggregator, so it sees
+ * whole requests coming in, and before the chunked writer, so it sees the end of every streamed response.
+ */
+class MetricsHandler extends ChannelDuplexHandler {
+    private final ServerMetrics metrics;
+    // Requests are answered in order, even if a client pipelines them
+    private final Queue<PendingRequest> pending = new ArrayDeque<>();
+
+    MetricsHandler(final ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionOpened();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (msg instanceof final HttpRequest request) {
+            pending.add(new PendingRequest(endpointOf(request.uri()), System.nanoTime()));
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, ChannelPromise promise) throws Exception {
+        final PendingRequest request = pending.peek();
+        if (request != null) {
+            if (msg instanceof final HttpResponse response) {
+                metrics.recordRequest(request.endpoint(), response.status().code());
+                metrics.recordTimeToFirstByte(System.nanoTime() - request.startTime());
+            }
+            if (msg instanceof FullHttpResponse || msg instanceof LastHttpContent) {
+                pending.poll();
+                promise = promise.unvoid();
+                promise.addListener(future -> metrics.recordResponseTime(System.nanoTime() - request.startTime()));
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    private static String endpointOf(final String uri) {
+        if (uri.equals("/servermanifest.json")) {
+            return "manifest";
+        } else if (uri.startsWith(ManifestDiff.PATH)) {
+            return "manifest_diff";
+        } else if (uri.startsWith("/files/by-hash/")) {
+            return "files_by_hash";
+        } else if (uri.startsWith("/files/")) {
+            return "files";
+        } else if (uri.startsWith("/chunks/")) {
+            return "chunks";
+        } else if (uri.equals(BundleFormat.PATH)) {
+            return "bundle";
+        } else if (uri.equals("/metrics")) {
+            return "metrics";
+        }
+        // Never label by the raw URI, or anyone could grow the set of counters without bound
+        return "other";
+    }
+
+    private record PendingRequest(String endpoint, long startTime) {
+    }
+}
@@ -0,0 +1,106 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Watches the mod roots for jars, or other files of interest, being added, removed or replaced. Copying a jar in
+ * produces a burst of events, so the listener is only told which roots changed once nothing has happened for the
+ * debounce period.
+ */
+class ModRootWatcher {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> roots = new HashMap<>();
+    private final Predicate<Path> filter;
+    private final long debounceMillis;
+    private final Consumer<Set<Path>> listener;
+
+    private ModRootWatcher(final WatchService watchService, final Predicate<Path> filter, final long debounceMillis, final Consumer<Set<Path>> listener) {
+        this.watchService = watchService;
+        this.filter = filter;
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+    }
+
+    static void start(final List<Path> roots, final long debounceMillis, final Consumer<Set<Path>> listener) throws IOException {
+        start(roots, ModRootWatcher::isJar, debounceMillis, listener);
+    }
+
+    /**
+     * @param filter which file names within the roots to react to
+     */
+    static void start(final List<Path> roots, final Predicate<Path> filter, final long debounceMillis, final Consumer<Set<Path>> listener) throws IOException {
+        final ModRootWatcher watcher = new ModRootWatcher(FileSystems.getDefault().newWatchService(), filter, debounceMillis, listener);
+        for (final Path root : roots) {
+            final WatchKey key = root.register(watcher.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher.roots.put(key, root);
+        }
+        new ThreadFactoryBuilder()
+                .setNameFormat("ServerPackLocator Watcher - %d")
+                .setDaemon(true)
+                .build()
+                .newThread(watcher::run)
+                .start();
+    }
+
+    private void run() {
+        try {
+            while (!roots.isEmpty()) {
+                final Set<Path> changedRoots = new HashSet<>();
+                collect(watchService.take(), changedRoots);
+                WatchKey key;
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changedRoots);
+                }
+                if (!changedRoots.isEmpty()) {
+                    try {
+                        listener.accept(changedRoots);
+                    } catch (final Exception e) {
+                        LOGGER.error("Failed to handle changes to {}", changedRoots, e);
+                    }
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching mod roots");
+        }
+    }
+
+    private void collect(final WatchKey key, final Set<Path> changedRoots) {
+        final Path root = roots.get(key);
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            // An overflow means we lost track of what happened, so assume the worst
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || event.context() instanceof final Path path && filter.test(path)) {
+                changedRoots.add(root);
+            }
+        }
+        if (!key.reset()) {
+            LOGGER.warn("Mod root {} is no longer accessible, changes to it will not be picked up", root);
+            roots.remove(key);
+        }
+    }
+
+    private static boolean isJar(final Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".jar");
+    }
+}
@@ -1,31 +1,72 @@
 package cpw.mods.forge.serverpacklocator.server;
 
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.ManifestDiff;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.LongConsumer;
 
 class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final String FILE_CONTENT_TYPE = "application/octet-stream";
+    // Clients and proxies must revalidate the manifest every time, which is cheap thanks to its ETag
+    static final String MANIFEST_CACHE_CONTROL = "no-cache";
+    // Content addressed by checksum never changes, so caches may keep it indefinitely
+    static final String FILE_BY_HASH_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    // Files by name change whenever the pack is rebuilt, so caches must revalidate them against the checksum ETag
+    static final String FILE_BY_NAME_CACHE_CONTROL = "no-cache";
 
     private final ServerFileManager serverFileManager;
+    private final ServerMetrics metrics;
+    private final TransferLimiter transferLimiter;
+    @Nullable
+    private final Set<InetAddress> metricsAddresses;
 
-    RequestHandler(final ServerFileManager serverFileManager) {
+    RequestHandler(final ServerFileManager serverFileManager, final ServerMetrics metrics, final TransferLimiter transferLimiter, @Nullable final Set<InetAddress> metricsAddresses) {
         this.serverFileManager = serverFileManager;
+        this.metrics = metrics;
+        this.transferLimiter = transferLimiter;
+        this.metricsAddresses = metricsAddresses;
     }
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
         if (Objects.equals(HttpMethod.GET, msg.method())) {
             handleGet(ctx, msg);
+        } else if (Objects.equals(HttpMethod.POST, msg.method()) && Objects.equals(BundleFormat.PATH, msg.uri())) {
+            LOGGER.info("Bundle request for client {}", determineClientIp(ctx, msg));
+            buildBundleReply(ctx, msg);
         } else {
             buildReply(ctx, msg, HttpResponseStatus.BAD_REQUEST, "text/plain", "Bad request");
         }
@@ -36,16 +77,49 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
         if (Objects.equals("/servermanifest.json", msg.uri())) {
             LOGGER.info("Manifest request for client {}", determineClientIp(ctx, msg));
-            final String manifest = serverFileManager.getManifestJson();
-            buildReply(ctx, msg, HttpResponseStatus.OK, "application/json", manifest);
+            buildManifestReply(ctx, msg);
+        } else if (msg.uri().startsWith(ManifestDiff.PATH)) {
+            LOGGER.info("Manifest diff request for client {}", determineClientIp(ctx, msg));
+            buildManifestDiffReply(ctx, msg, parseChecksum(msg.uri().substring(ManifestDiff.PATH.length())));
+        } else if (metricsAddresses != null && Objects.equals("/metrics", msg.uri())) {
+            if (ctx.channel().remoteAddress() instanceof final InetSocketAddress address && metricsAddresses.contains(address.getAddress())) {
+                buildReply(ctx, msg, HttpResponseStatus.OK, "text/plain; version=0.0.4", metrics.render());
+            } else {
+                LOGGER.debug("Refused metrics request from {}", ctx.channel().remoteAddress());
+                buildReply(ctx, msg, HttpResponseStatus.FORBIDDEN, "text/plain", "Forbidden");
+            }
+        } else if (msg.uri().startsWith("/files/by-hash/")) {
+            HashCode checksum = parseChecksum(msg.uri().substring(15));
+            ServerFileManager.PackFile file = checksum != null ? serverFileManager.getSnapshot().findFileByChecksum(checksum) : null;
+            if (file == null) {
+                LOGGER.debug("Requested file {} not found", msg.uri());
+                build404(ctx, msg);
+            } else if (!serverFileManager.isUnchanged(file)) {
+                // Caches would keep whatever we send under this address forever, so never send it content that may
+                // not match
+                LOGGER.warn("File {} changed since the manifest was built, not serving it by checksum", file.path());
+                build404(ctx, msg);
+            } else {
+                buildFileReply(ctx, msg, file.data().fileName(), file, FILE_BY_HASH_CACHE_CONTROL);
+            }
         } else if (msg.uri().startsWith("/files/")) {
             String fileName = URLDecoder.decode(msg.uri().substring(7), StandardCharsets.UTF_8);
-            byte[] file = serverFileManager.findFile(fileName);
+            ServerFileManager.PackFile file = serverFileManager.getSnapshot().findFile(fileName);
             if (file == null) {
                 LOGGER.debug("Requested file {} not found", fileName);
                 build404(ctx, msg);
             } else {
-                buildFileReply(ctx, msg, fileName, file);
+                buildFileReply(ctx, msg, fileName, file, FILE_BY_NAME_CACHE_CONTROL);
+            }
+        } else if (msg.uri().startsWith("/chunks/")) {
+            String fileName = URLDecoder.decode(msg.uri().substring(8), StandardCharsets.UTF_8);
+            ServerFileManager.PackFile file = serverFileManager.getSnapshot().findFile(fileName);
+            Path chunkIndex = file != null ? serverFileManager.findChunkIndex(file.data().checksum()) : null;
+            if (chunkIndex == null) {
+                LOGGER.debug("Requested chunk index for {} not available", fileName);
+                build404(ctx, msg);
+            } else {
+                buildChunkIndexReply(ctx, msg, fileName, file.data().checksum(), chunkIndex);
             }
         } else {
             LOGGER.debug("Failed to understand message {}", msg);
@@ -78,21 +152,383 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     }
 
     private void buildReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final HttpResponseStatus status, final String contentType, final String message) {
+        ctx.writeAndFlush(createReply(msg, status, contentType, message));
+    }
+
+    private FullHttpResponse createReply(final FullHttpRequest msg, final HttpResponseStatus status, final String contentType, final String message) {
         final ByteBuf content = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
         FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
         resp.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
         HttpUtil.setContentLength(resp, content.writerIndex());
+        return resp;
+    }
+
+    private void buildBusy(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        final FullHttpResponse resp = createReply(msg, HttpResponseStatus.SERVICE_UNAVAILABLE, "text/plain", "Too many downloads in progress");
+        resp.headers().set(HttpHeaderNames.RETRY_AFTER, transferLimiter.retryAfterSeconds());
         ctx.writeAndFlush(resp);
     }
 
-    private void buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final byte[] file) {
-        final ByteBuf content = Unpooled.wrappedBuffer(file);
-        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+    private void buildNotModified(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String etag, final String cacheControl) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
-        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
-        resp.headers().set("filename", fileName);
-        HttpUtil.setContentLength(resp, content.writerIndex());
+        resp.headers().set(HttpHeaderNames.ETAG, etag);
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        resp.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        ctx.writeAndFlush(resp);
+    }
+
+    private void buildManifestReply(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        final ServerFileManager.Snapshot snapshot = serverFileManager.getSnapshot();
+        final HashCode hash = snapshot.hash();
+        final byte[] compressedManifest = acceptsGzip(msg) ? snapshot.compressedJson() : null;
+        final String etag = formatETag(hash, compressedManifest != null ? CompressionCache.GZIP : null);
+        if (matchesETag(msg, hash)) {
+            buildNotModified(ctx, msg, etag, MANIFEST_CACHE_CONTROL);
+            return;
+        }
+
+        final FullHttpResponse resp;
+        if (compressedManifest != null) {
+            resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(compressedManifest));
+            HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+            resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+            resp.headers().set(HttpHeaderNames.CONTENT_ENCODING, CompressionCache.GZIP);
+            HttpUtil.setContentLength(resp, compressedManifest.length);
+        } else {
+            resp = createReply(msg, HttpResponseStatus.OK, "application/json", snapshot.json());
+        }
+        resp.headers().set(HttpHeaderNames.ETAG, etag);
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, MANIFEST_CACHE_CONTROL);
+        resp.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
         ctx.writeAndFlush(resp);
     }
+
+    /**
+     * Answers a client that already has the manifest with the given hash: not modified if that is still the current
+     * one, or the changes since. We only remember a few generations, so anything older is not found and the client
+     * fetches the whole manifest instead.
+     */
+    private void buildManifestDiffReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, @Nullable final HashCode base) {
+        final ServerFileManager.Snapshot snapshot = serverFileManager.getSnapshot();
+        if (snapshot.hash().equals(base)) {
+            buildNotModified(ctx, msg, formatETag(snapshot.hash(), null), MANIFEST_CACHE_CONTROL);
+            return;
+        }
+        final String diff = base != null ? snapshot.diffFrom(base) : null;
+        if (diff == null) {
+            LOGGER.debug("No manifest diff available from {}", base);
+            build404(ctx, msg);
+            return;
+        }
+        final FullHttpResponse resp = createReply(msg, HttpResponseStatus.OK, "application/json", diff);
+        resp.headers().set(HttpHeaderNames.ETAG, formatETag(snapshot.hash(), null));
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, MANIFEST_CACHE_CONTROL);
+        ctx.writeAndFlush(resp);
+    }
+
+    private void buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final ServerFileManager.PackFile file, final String cacheControl) {
+        final HashCode checksum = file.data().checksum();
+        // Ranges are only supported over the original content
+        final boolean useCompressedVariant = acceptsGzip(msg) && !msg.headers().contains(HttpHeaderNames.RANGE);
+        final Path compressedVariant = useCompressedVariant ? serverFileManager.findCompressedVariant(checksum) : null;
+        if (matchesETag(msg, checksum)) {
+            buildNotModified(ctx, msg, formatETag(checksum, compressedVariant != null ? CompressionCache.GZIP : null), cacheControl);
+            return;
+        }
+
+        if (!transferLimiter.tryAcquire()) {
+            LOGGER.debug("Turning away request for {}, {} transfers in progress", fileName, transferLimiter.activeTransfers());
+            buildBusy(ctx, msg);
+            return;
+        }
+        // The variant may have been evicted since we looked it up, in which case we can still serve the original
+        final LongConsumer bytesServed = bytes -> metrics.recordBytesServed(fileName, bytes);
+        ChannelFuture transfer = compressedVariant != null ? streamFile(ctx, msg, fileName, compressedVariant, FILE_CONTENT_TYPE, checksum, CompressionCache.GZIP, cacheControl, bytesServed) : null;
+        if (transfer == null) {
+            transfer = streamFile(ctx, msg, fileName, file.path(), FILE_CONTENT_TYPE, checksum, null, cacheControl, bytesServed);
+        }
+        if (transfer != null) {
+            transfer.addListener(future -> transferLimiter.release());
+        } else {
+            transferLimiter.release();
+            build404(ctx, msg);
+        }
+    }
+
+    private void buildChunkIndexReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final HashCode checksum, final Path chunkIndex) {
+        // An index is much smaller than its file, but streaming it still ties up a connection like any other transfer
+        if (!transferLimiter.tryAcquire()) {
+            LOGGER.debug("Turning away chunk index request for {}, {} transfers in progress", fileName, transferLimiter.activeTransfers());
+            buildBusy(ctx, msg);
+            return;
+        }
+        // Index traffic is not file content, so it must not inflate the bytes served for the file
+        final ChannelFuture transfer = streamFile(ctx, msg, fileName, chunkIndex, "application/json", checksum, null, FILE_BY_NAME_CACHE_CONTROL, metrics::recordChunkIndexBytesServed);
+        if (transfer != null) {
+            transfer.addListener(future -> transferLimiter.release());
+        } else {
+            transferLimiter.release();
+            LOGGER.debug("Requested chunk index for {} not available", fileName);
+            build404(ctx, msg);
+        }
+    }
+
+    private void buildBundleReply(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        final ServerFileManager.Snapshot snapshot = serverFileManager.getSnapshot();
+        final String[] lines = msg.content().toString(StandardCharsets.UTF_8).split("\n");
+        if (lines.length > BundleFormat.MAX_FILES) {
+            buildReply(ctx, msg, HttpResponseStatus.BAD_REQUEST, "text/plain", "Too many files requested");
+            return;
+        }
+        if (!transferLimiter.tryAcquire()) {
+            LOGGER.debug("Turning away bundle request, {} transfers in progress", transferLimiter.activeTransfers());
+            buildBusy(ctx, msg);
+            return;
+        }
+
+        final List<BundleEntry> entries = new ArrayList<>();
+        long contentLength = 0;
+        for (final String line : lines) {
+            final HashCode checksum = line.isBlank() ? null : parseChecksum(line.trim());
+            final ServerFileManager.PackFile file = checksum != null ? snapshot.findFileByChecksum(checksum) : null;
+            if (file == null) {
+                continue;
+            }
+            try {
+                // Only the size is needed up front, each file is opened once it is its turn to be sent
+                final BundleEntry entry = new BundleEntry(checksum, file.data().fileName(), file.path(), Files.size(file.path()));
+                entries.add(entry);
+                contentLength += BundleFormat.HEADER_BYTES + entry.length();
+            } catch (final IOException e) {
+                // The client will fetch anything missing from the bundle on its own
+                LOGGER.warn("Failed to read size of file {} for bundle", file.path(), e);
+            }
+        }
+
+        final boolean keepAlive = HttpUtil.isKeepAlive(msg);
+        final HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setKeepAlive(resp, keepAlive);
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, BundleFormat.CONTENT_TYPE);
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+        HttpUtil.setContentLength(resp, contentLength);
+        ctx.write(resp);
+
+        final boolean fileRegions = canSendFileRegions(ctx);
+        for (final BundleEntry entry : entries) {
+            final ByteBuf header = ctx.alloc().buffer(BundleFormat.HEADER_BYTES);
+            header.writeBytes(entry.checksum().asBytes()).writeLong(entry.length());
+            ctx.write(header);
+            // A bundle can list thousands of files, so none is opened until it reaches the head of the outbound buffer,
+            // and each is closed again once sent. The length stays as stated in Content-Length either way.
+            ctx.write(fileRegions ? new DefaultFileRegion(entry.path().toFile(), 0, entry.length()) : new LazyChunkedFile(entry.path(), entry.length()));
+        }
+        final ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        lastContentFuture.addListener(future -> {
+            transferLimiter.release();
+            if (future.isSuccess()) {
+                entries.forEach(entry -> metrics.recordBytesServed(entry.fileName(), entry.length()));
+            }
+        });
+        if (!keepAlive) {
+            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * @param bytesServed told how many bytes were sent once the response has been sent in full
+     * @return a future completing once the response has been sent, or {@code null} if the file could not be opened
+     */
+    @Nullable
+    private ChannelFuture streamFile(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final Path path, final String contentType, final HashCode checksum, @Nullable final String contentEncoding, final String cacheControl, final LongConsumer bytesServed) {
+        final FileChannel channel;
+        final long length;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            length = channel.size();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to open file {}", path, e);
+            return null;
+        }
+
+        final boolean rangeAllowed = contentEncoding == null && ifRangeMatches(msg, checksum);
+        final String rangeHeader = rangeAllowed ? msg.headers().get(HttpHeaderNames.RANGE) : null;
+        final ByteRange range = rangeHeader != null ? ByteRange.parse(rangeHeader, length) : null;
+        if (range == ByteRange.UNSATISFIABLE) {
+            closeQuietly(channel);
+            final FullHttpResponse resp = createReply(msg, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "text/plain", "Range Not Satisfiable");
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+            return ctx.writeAndFlush(resp);
+        }
+        final long start = range != null ? range.start() : 0;
+        final long count = range != null ? range.length() : length;
+
+        final boolean keepAlive = HttpUtil.isKeepAlive(msg);
+        final HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range != null ? HttpResponseStatus.PARTIAL_CONTENT : HttpResponseStatus.OK);
+        HttpUtil.setKeepAlive(resp, keepAlive);
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        resp.headers().set("filename", fileName);
+        resp.headers().set(HttpHeaderNames.ETAG, formatETag(checksum, contentEncoding));
+        resp.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        resp.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        if (contentEncoding != null) {
+            resp.headers().set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding);
+        } else {
+            resp.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        }
+        if (range != null) {
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, range.toContentRange(length));
+        }
+        HttpUtil.setContentLength(resp, count);
+        ctx.write(resp);
+
+        // Never pull the file onto the heap: sendfile straight from the page cache when we can, otherwise let the
+        // ChunkedWriteHandler feed the SslHandler one chunk at a time as the channel becomes writable
+        final ChannelFuture lastContentFuture;
+        try {
+            if (canSendFileRegions(ctx)) {
+                ctx.write(new DefaultFileRegion(channel, start, count));
+                lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            } else {
+                lastContentFuture = ctx.writeAndFlush(new HttpChunkedInput(new ChunkedNioFile(channel, start, count, FILE_CHUNK_SIZE)));
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to stream file {}", fileName, e);
+            closeQuietly(channel);
+            return ctx.close();
+        }
+
+        lastContentFuture.addListener(future -> {
+            if (future.isSuccess()) {
+                bytesServed.accept(count);
+            }
+        });
+        if (!keepAlive) {
+            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+        return lastContentFuture;
+    }
+
+    /**
+     * File regions are sent by the kernel in one go, which bypasses both TLS and traffic shaping.
+     */
+    private boolean canSendFileRegions(final ChannelHandlerContext ctx) {
+        return ctx.pipeline().get(SslHandler.class) == null && !transferLimiter.isShaping();
+    }
+
+    @Nullable
+    private static HashCode parseChecksum(final String string) {
+        try {
+            return HashCode.fromString(string.toLowerCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean acceptsGzip(final FullHttpRequest msg) {
+        return CompressionCache.acceptsGzip(msg.headers().getAll(HttpHeaderNames.ACCEPT_ENCODING));
+    }
+
+    private static String formatETag(final HashCode hash, @Nullable final String contentEncoding) {
+        // Each encoding is a different representation, so it needs its own strong validator
+        return contentEncoding != null ? "\"" + hash + "-" + contentEncoding + "\"" : "\"" + hash + "\"";
+    }
+
+    private static boolean matchesETag(final FullHttpRequest msg, final HashCode hash) {
+        final String identityTag = formatETag(hash, null);
+        final String gzipTag = formatETag(hash, CompressionCache.GZIP);
+        for (final String header : msg.headers().getAll(HttpHeaderNames.IF_NONE_MATCH)) {
+            for (final String candidate : header.split(",")) {
+                String tag = candidate.trim();
+                // If-None-Match uses weak comparison, and any encoding of the same content is still a match
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(identityTag) || tag.equals(gzipTag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean ifRangeMatches(final FullHttpRequest msg, final HashCode checksum) {
+        final String ifRange = msg.headers().get(HttpHeaderNames.IF_RANGE);
+        // If-Range needs a strong match, and since we never send Last-Modified, a date can never match
+        return ifRange == null || ifRange.trim().equals(formatETag(checksum, null));
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOGGER.debug("Failed to close file channel", e);
+        }
+    }
+
+    private record BundleEntry(HashCode checksum, String fileName, Path path, long length) {
+    }
+
+    /**
+     * Streams part of a file through the {@link io.netty.handler.stream.ChunkedWriteHandler}, only opening it once the
+     * handler gets to it.
+     */
+    private static final class LazyChunkedFile implements ChunkedInput<ByteBuf> {
+        private final Path path;
+        private final long length;
+        @Nullable
+        private ChunkedNioFile file;
+
+        LazyChunkedFile(final Path path, final long length) {
+            this.path = path;
+            this.length = length;
+        }
+
+        private ChunkedNioFile open() throws IOException {
+            if (file == null) {
+                final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                if (channel.size() < length) {
+                    closeQuietly(channel);
+                    // Sending less than the stated length would corrupt the rest of the response
+                    throw new IOException("File " + path + " shrank while its bundle was being sent");
+                }
+                file = new ChunkedNioFile(channel, 0, length, FILE_CHUNK_SIZE);
+            }
+            return file;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return open().isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (file != null) {
+                file.close();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(final ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(final ByteBufAllocator allocator) throws Exception {
+            return open().readChunk(allocator);
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return file != null ? file.progress() : 0;
+        }
+    }
 }
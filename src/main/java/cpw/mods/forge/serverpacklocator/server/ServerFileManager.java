@@ -1,91 +1,229 @@
 package cpw.mods.forge.serverpacklocator.server;
 
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.mojang.logging.LogUtils;
-import cpw.mods.forge.serverpacklocator.DirHandler;
-import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
-import cpw.mods.forge.serverpacklocator.PackBuilder;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.HashAlgorithm;
+import cpw.mods.forge.serverpacklocator.ManifestDiff;
+import cpw.mods.forge.serverpacklocator.PackEntry;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
-import net.neoforged.neoforgespi.locating.IModFile;
 import org.slf4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class ServerFileManager {
     private static final Logger LOGGER = LogUtils.getLogger();
+    // Enough generations to cover a day of frequent updates, while each one only costs its list of entries
+    private static final int MAX_HISTORY = 32;
+
     private final Path manifestPath;
-    private final List<Path> modRoots;
-    private Set<String> filesInManifest = Set.of();
+    private final ChecksumCache checksumCache;
+    @Nullable
+    private final CompressionCache compressionCache;
+    @Nullable
+    private final ChunkIndexCache chunkIndexCache;
     @Nullable
-    private String manifestJson;
+    private final StaticExporter exporter;
+    private final ServerMetrics metrics;
+    // Earlier manifests that clients may still have, oldest first, so that they can be sent only what changed since
+    private final Map<HashCode, ServerManifest> history = new LinkedHashMap<>();
+    // Replaced wholesale on every rebuild, so a request that has read it sees one consistent set of files
+    @Nullable
+    private volatile Snapshot snapshot;
 
-    ServerFileManager(final Path manifestPath, final List<Path> modRoots) {
+    ServerFileManager(final Path manifestPath, final ChecksumCache checksumCache, @Nullable final CompressionCache compressionCache, @Nullable final ChunkIndexCache chunkIndexCache, @Nullable final StaticExporter exporter, final ServerMetrics metrics) {
         this.manifestPath = manifestPath;
-        this.modRoots = modRoots;
+        this.checksumCache = checksumCache;
+        this.compressionCache = compressionCache;
+        this.chunkIndexCache = chunkIndexCache;
+        this.exporter = exporter;
+        this.metrics = metrics;
     }
 
-    String getManifestJson() {
-        return Objects.requireNonNull(manifestJson, "Manifest has not been initialized");
+    Snapshot getSnapshot() {
+        return Objects.requireNonNull(snapshot, "Manifest has not been initialized");
     }
 
     @Nullable
-    byte[] findFile(final String fileName) {
-        try {
-            Path path = findFilePath(fileName);
-            if (path == null) {
-                LOGGER.warn("Requested mod file not in servermods directory: {}", fileName);
-                return null;
-            }
-            return Files.readAllBytes(path);
-        } catch (IOException e) {
-            LOGGER.warn("Failed to read file {}", fileName, e);
-            return null;
-        }
+    Path findCompressedVariant(final HashCode checksum) {
+        return compressionCache != null ? compressionCache.findVariant(checksum) : null;
     }
 
     @Nullable
-    private Path findFilePath(final String fileName) {
-        if (!filesInManifest.contains(fileName)) {
-            return null;
-        }
-        for (final Path root : modRoots) {
-            final Path path = DirHandler.resolveDirectChild(root, fileName);
-            if (path != null && Files.exists(path)) {
-                return path;
-            }
-        }
-        return null;
+    Path findChunkIndex(final HashCode checksum) {
+        return chunkIndexCache != null ? chunkIndexCache.findIndex(checksum) : null;
     }
 
-    void buildManifest(final List<IModFile> files) {
+    /**
+     * @return whether the file on disk still has the content it was listed with, as far as its stat tells. Files can be
+     * overwritten in place at any time, and are only rehashed on the next rebuild, if there is one.
+     */
+    boolean isUnchanged(final PackFile file) {
+        return file.data().checksum().equals(checksumCache.getCached(file.path()));
+    }
+
+    /**
+     * Builds a new manifest from the given files and swaps it in. Only files that changed since they were last seen are
+     * rehashed.
+     */
+    synchronized void buildManifest(final List<PackEntry> files) {
+        final long startTime = System.nanoTime();
         final ServerManifest manifest = generateManifest(files);
-        manifestJson = manifest.toJson();
-        filesInManifest = manifest.files().stream().map(ServerManifest.ModFileData::fileName).collect(Collectors.toSet());
+        final String manifestJson = manifest.toJson();
+        final Map<String, Path> pathsByName = files.stream().collect(Collectors.toMap(PackEntry::fileName, PackEntry::path, (a, b) -> a));
+
+        final Map<String, PackFile> filesByName = new HashMap<>();
+        final Map<HashCode, PackFile> filesByChecksum = new HashMap<>();
+        for (final ServerManifest.ModFileData data : manifest.files()) {
+            final PackFile file = new PackFile(data, pathsByName.get(data.fileName()));
+            filesByName.putIfAbsent(data.fileName(), file);
+            filesByChecksum.putIfAbsent(data.checksum(), file);
+        }
+        final byte[] compressedManifest = compressionCache != null ? CompressionCache.compress(manifestJson.getBytes(StandardCharsets.UTF_8)) : null;
+
+        final Snapshot previous = snapshot;
+        if (previous != null) {
+            remember(previous.hash(), previous.manifest());
+        } else {
+            loadPreviousManifest();
+        }
+        final HashCode hash = ServerManifest.hash(manifestJson);
+        // Rebuilding to a manifest we served before makes it current again, not something to diff against
+        history.remove(hash);
+        final Snapshot next = new Snapshot(manifestJson, hash, compressedManifest, manifest, Map.copyOf(history), new ConcurrentHashMap<>(), Map.copyOf(filesByName), Map.copyOf(filesByChecksum));
+        snapshot = next;
+
+        final Map<HashCode, Path> pathsByChecksum = filesByChecksum.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().path()));
+        final CompletableFuture<Void> compressed = compressionCache != null ? compressionCache.update(pathsByChecksum) : CompletableFuture.completedFuture(null);
+        if (chunkIndexCache != null) {
+            chunkIndexCache.update(pathsByChecksum);
+        }
+        if (exporter != null) {
+            // Wait for the compressed variants, so that the export can include them
+            exporter.update(next, compressionCache, compressed);
+        }
 
         // We never use the serialised file, but some setups expose the manifest through an external HTTP server
         manifest.save(manifestPath);
+        checksumCache.save();
+
+        final long durationMillis = (System.nanoTime() - startTime) / 1_000_000;
+        metrics.recordManifestBuild(durationMillis);
+        if (previous != null) {
+            final Set<HashCode> added = Sets.difference(next.filesByChecksum().keySet(), previous.filesByChecksum().keySet());
+            final Set<HashCode> removed = Sets.difference(previous.filesByChecksum().keySet(), next.filesByChecksum().keySet());
+            LOGGER.info("Rebuilt manifest with {} files in {} ms: {} added or changed, {} removed", filesByName.size(), durationMillis, added.size(), removed.size());
+        } else {
+            LOGGER.info("Built manifest with {} files in {} ms", filesByName.size(), durationMillis);
+        }
     }
 
-    private ServerManifest generateManifest(final List<IModFile> modList) {
+    private void remember(final HashCode hash, final ServerManifest manifest) {
+        history.remove(hash);
+        history.put(hash, manifest);
+        while (history.size() > MAX_HISTORY) {
+            history.remove(history.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Clients that synced before a restart still have the manifest we last saved, so keep it as the first generation
+     * to diff against.
+     */
+    private void loadPreviousManifest() {
+        if (!Files.exists(manifestPath)) {
+            return;
+        }
+        try {
+            final String json = Files.readString(manifestPath, StandardCharsets.UTF_8);
+            ServerManifest.parse(json).result().ifPresent(manifest -> remember(ServerManifest.hash(json), manifest));
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.debug("Failed to read previous manifest {}", manifestPath, e);
+        }
+    }
+
+    private ServerManifest generateManifest(final List<PackEntry> modList) {
         LOGGER.debug("Generating manifest");
 
         final ServerManifest.Builder manifest = new ServerManifest.Builder();
+        final List<Path> paths = modList.stream().map(PackEntry::path).toList();
+        // The fast hash lets clients check files that changed on disk quickly, only computing the checksum for files
+        // they replace
+        final Map<Path, Map<HashAlgorithm, HashCode>> hashes = checksumCache.getOrComputeAll(paths, EnumSet.of(HashAlgorithm.SHA256, HashAlgorithm.FAST)).join();
 
-        for (final IModFile file : modList) {
-            final HashCode checksum = FileChecksumValidator.computeChecksumFor(file.getFilePath());
+        for (final PackEntry file : modList) {
+            final Map<HashAlgorithm, HashCode> fileHashes = hashes.getOrDefault(file.path(), Map.of());
+            final HashCode checksum = fileHashes.get(HashAlgorithm.SHA256);
             if (checksum == null) {
-                throw new IllegalArgumentException("Invalid checksum for file " + file.getFileName());
+                throw new IllegalArgumentException("Invalid checksum for file " + file.fileName());
+            }
+            final long size;
+            try {
+                size = Files.size(file.path());
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Failed to read size of file " + file.fileName(), e);
             }
-            manifest.add(PackBuilder.getRootModId(file), checksum, file.getFileName());
+            final HashCode fastHash = fileHashes.get(HashAlgorithm.FAST);
+            final Map<String, HashCode> publishedHashes = fastHash != null ? Map.of(HashAlgorithm.FAST.id(), fastHash) : Map.of();
+            manifest.add(new ServerManifest.ModFileData(file.rootModId(), checksum, file.fileName(), size, publishedHashes));
         }
 
         return manifest.build();
     }
+
+    record PackFile(ServerManifest.ModFileData data, Path path) {
+    }
+
+    /**
+     * An immutable view of the manifest and the files it lists, as served to clients.
+     *
+     * @param compressedJson the gzip-compressed manifest, or {@code null} if compression is disabled or would not help
+     * @param history        earlier manifests by hash, which clients can ask for a diff against
+     * @param diffs          diffs from earlier manifests to this one, filled in as clients ask for them
+     */
+    record Snapshot(String json, HashCode hash, @Nullable byte[] compressedJson, ServerManifest manifest, Map<HashCode, ServerManifest> history, Map<HashCode, String> diffs, Map<String, PackFile> filesByName, Map<HashCode, PackFile> filesByChecksum) {
+        @Nullable
+        PackFile findFile(final String fileName) {
+            final PackFile file = filesByName.get(fileName);
+            if (file == null) {
+                LOGGER.warn("Requested mod file not in servermods directory: {}", fileName);
+            }
+            return file;
+        }
+
+        @Nullable
+        PackFile findFileByChecksum(final HashCode checksum) {
+            return filesByChecksum.get(checksum);
+        }
+
+        /**
+         * @return the serialised changes from the given earlier manifest to this one, or {@code null} if we no longer
+         * know that manifest
+         */
+        @Nullable
+        String diffFrom(final HashCode base) {
+            final ServerManifest baseManifest = history.get(base);
+            if (baseManifest == null) {
+                return null;
+            }
+            // Every client that synced the same generation asks for the same diff
+            return diffs.computeIfAbsent(base, key -> ManifestDiff.between(key, baseManifest, hash, manifest).toJson());
+        }
+    }
 }
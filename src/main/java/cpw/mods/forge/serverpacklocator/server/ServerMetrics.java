@@ -0,0 +1,162 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what the pack server has been doing since it started, rendered in the Prometheus text format.
+ * <p>
+ * Everything here is updated from the Netty event loops, so counters are {@link LongAdder}s and keyed counters are only
+ * ever created once and then looked up without locking.
+ */
+class ServerMetrics {
+    private static final String PREFIX = "serverpacklocator_";
+
+    private final Map<RequestKey, LongAdder> requests = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesServed = new ConcurrentHashMap<>();
+    private final LongAdder chunkIndexBytesServed = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder tlsHandshakeFailures = new LongAdder();
+    private final Histogram timeToFirstByte = new Histogram();
+    private final Histogram responseTime = new Histogram();
+    private final LongAdder manifestBuilds = new LongAdder();
+    private final LongAdder manifestBuildMillis = new LongAdder();
+
+    void recordRequest(final String endpoint, final int status) {
+        requests.computeIfAbsent(new RequestKey(endpoint, status), key -> new LongAdder()).increment();
+    }
+
+    void recordBytesServed(final String fileName, final long bytes) {
+        bytesServed.computeIfAbsent(fileName, key -> new LongAdder()).add(bytes);
+    }
+
+    void recordChunkIndexBytesServed(final long bytes) {
+        chunkIndexBytesServed.add(bytes);
+    }
+
+    void recordTimeToFirstByte(final long nanos) {
+        timeToFirstByte.observe(nanos);
+    }
+
+    void recordResponseTime(final long nanos) {
+        responseTime.observe(nanos);
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void recordTlsHandshakeFailure() {
+        tlsHandshakeFailures.increment();
+    }
+
+    void recordManifestBuild(final long durationMillis) {
+        manifestBuilds.increment();
+        manifestBuildMillis.add(durationMillis);
+    }
+
+    String render() {
+        final StringBuilder out = new StringBuilder();
+
+        header(out, "requests_total", "counter", "HTTP requests handled, by endpoint and response status");
+        requests.forEach((key, count) -> out.append(PREFIX).append("requests_total{endpoint=\"").append(key.endpoint())
+                .append("\",status=\"").append(key.status()).append("\"} ").append(count.sum()).append('\n'));
+
+        header(out, "bytes_served_total", "counter", "Bytes of file content sent, by file name");
+        bytesServed.forEach((fileName, bytes) -> out.append(PREFIX).append("bytes_served_total{file=\"").append(escapeLabel(fileName))
+                .append("\"} ").append(bytes.sum()).append('\n'));
+
+        header(out, "chunk_index_bytes_served_total", "counter", "Bytes of chunk indexes sent for delta downloads");
+        sample(out, "chunk_index_bytes_served_total", chunkIndexBytesServed.sum());
+
+        header(out, "active_connections", "gauge", "Currently open client connections");
+        sample(out, "active_connections", activeConnections.sum());
+
+        header(out, "tls_handshake_failures_total", "counter", "TLS handshakes that failed");
+        sample(out, "tls_handshake_failures_total", tlsHandshakeFailures.sum());
+
+        timeToFirstByte.render(out, "time_to_first_byte_seconds", "Time from receiving a request to sending the response headers");
+        responseTime.render(out, "response_time_seconds", "Time from receiving a request to sending the last byte of the response");
+
+        header(out, "manifest_builds_total", "counter", "Times the manifest was built, including live rebuilds");
+        sample(out, "manifest_builds_total", manifestBuilds.sum());
+        header(out, "manifest_build_seconds_total", "counter", "Total time spent building the manifest");
+        sample(out, "manifest_build_seconds_total", manifestBuildMillis.sum() / 1000.0);
+
+        header(out, "hashed_bytes_total", "counter", "Bytes of pack files hashed");
+        sample(out, "hashed_bytes_total", FileChecksumValidator.hashedBytes());
+        header(out, "hashing_seconds_total", "counter", "Total time spent hashing pack files, summed across threads");
+        sample(out, "hashing_seconds_total", FileChecksumValidator.hashingNanos() / 1e9);
+
+        return out.toString();
+    }
+
+    private static void header(final StringBuilder out, final String name, final String type, final String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final Number value) {
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escapeLabel(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private record RequestKey(String endpoint, int status) {
+    }
+
+    /**
+     * A fixed-bucket latency histogram.
+     */
+    private static final class Histogram {
+        private static final double[] BOUNDS_SECONDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        // One more than the bounds, for the +Inf bucket
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_SECONDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(final long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        void render(final StringBuilder out, final String name, final String help) {
+            header(out, name, "histogram", help);
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                final String bound = i < BOUNDS_SECONDS.length ? Double.toString(BOUNDS_SECONDS[i]) : "+Inf";
+                out.append(PREFIX).append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            sample(out, name + "_sum", sumNanos.sum() / 1e9);
+            sample(out, name + "_count", cumulative);
+        }
+    }
+}
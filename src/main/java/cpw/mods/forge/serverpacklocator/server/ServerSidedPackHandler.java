@@ -2,8 +2,11 @@ package cpw.mods.forge.serverpacklocator.server;
 
 import com.electronwill.nightconfig.core.ConfigFormat;
 import com.electronwill.nightconfig.core.file.FileConfig;
+import com.electronwill.nightconfig.core.io.ParsingException;
 import com.mojang.logging.LogUtils;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
 import cpw.mods.forge.serverpacklocator.PackBuilder;
+import cpw.mods.forge.serverpacklocator.PackEntry;
 import cpw.mods.forge.serverpacklocator.SidedPackHandler;
 import cpw.mods.jarhandling.JarContents;
 import io.netty.handler.ssl.SslContext;
@@ -20,12 +23,19 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.OptionalInt;
 import java.util.Set;
@@ -34,7 +44,10 @@ import java.util.stream.Stream;
 
 public class ServerSidedPackHandler extends SidedPackHandler {
     private static final Logger LOGGER = LogUtils.getLogger();
+    private static final long WATCH_DEBOUNCE_MILLIS = 2000;
     private final Path clientModsDir;
+    // Only touched by the watcher thread once discovery has finished
+    private final Map<Path, LiveModFile> liveClientMods = new HashMap<>();
 
     public ServerSidedPackHandler(final Path serverModsDir, final Path clientModsDir) {
         super(serverModsDir);
@@ -72,37 +85,142 @@ public class ServerSidedPackHandler extends SidedPackHandler {
         final SslContext sslContext = buildSslContext(config.get("server.ssl.certificateChainFile"), config.get("server.ssl.keyFile"));
 
         final Path manifestPath = serverModsDir.resolve("servermanifest.json");
-        final List<Path> modRoots = List.of(serverModsDir, clientModsDir);
-        final ServerFileManager serverFileManager = new ServerFileManager(manifestPath, modRoots);
+        final ChecksumCache checksumCache = ChecksumCache.load(serverModsDir.resolve("checksumcache.json"));
+        final CompressionCache compressionCache = buildCompressionCache(config);
+        final ChunkIndexCache chunkIndexCache = config.<Boolean>getOptional("server.deltaSync").orElse(true)
+                ? new ChunkIndexCache(serverModsDir.resolve(".spl-cache").resolve("chunks"))
+                : null;
+        final ServerMetrics metrics = new ServerMetrics();
+        final StaticExporter exporter = buildStaticExporter(config);
+        final ServerFileManager serverFileManager = new ServerFileManager(manifestPath, checksumCache, compressionCache, chunkIndexCache, exporter, metrics);
 
-        SimpleHttpServer.run(serverFileManager, port, sslContext);
+        final TransferLimiter transferLimiter = new TransferLimiter(readTransferLimits(config));
 
-        final PackBuilder packBuilder = new PackBuilder(excludedModIds);
+        SimpleHttpServer.run(serverFileManager, metrics, transferLimiter, port, sslContext, readMetricsAddresses(config), readNetworkOptions(config));
+        watchTransferLimits(transferLimiter);
 
-        final List<IModFile> modsToShare = new ArrayList<>();
-        final List<IModFile> modsToLoad = new ArrayList<>();
+        final PackBuilder packBuilder = new PackBuilder(excludedModIds);
 
-        discoverMods(serverModsDir, pipeline, file -> {
-            modsToShare.add(file);
-            modsToLoad.add(file);
-        });
-        discoverMods(clientModsDir, pipeline, modsToShare::add);
+        final Map<PackEntry, IModFile> modsToLoad = new LinkedHashMap<>();
+        discoverMods(serverModsDir, pipeline, file -> modsToLoad.put(PackEntry.of(file), file));
+        final List<PackEntry> serverMods = List.copyOf(modsToLoad.keySet());
+        readClientMods(pipeline);
 
+        final List<PackEntry> modsToShare = new ArrayList<>(serverMods);
+        modsToShare.addAll(liveClientMods.values().stream().map(LiveModFile::entry).toList());
         serverFileManager.buildManifest(packBuilder.buildModList(modsToShare));
 
-        for (final IModFile file : packBuilder.buildModList(modsToLoad)) {
-            pipeline.addModFile(file);
+        for (final PackEntry entry : packBuilder.buildModList(serverMods)) {
+            pipeline.addModFile(modsToLoad.get(entry));
+        }
+
+        if (config.<Boolean>getOptional("server.watchForChanges").orElse(true)) {
+            try {
+                ModRootWatcher.start(List.of(serverModsDir, clientModsDir), WATCH_DEBOUNCE_MILLIS, changedRoots -> {
+                    if (changedRoots.contains(serverModsDir)) {
+                        LOGGER.warn("Mods in {} changed, restart the server to load and serve them", serverModsDir);
+                    }
+                    if (changedRoots.contains(clientModsDir)) {
+                        LOGGER.info("Mods in {} changed, rebuilding manifest", clientModsDir);
+                        final List<PackEntry> liveModsToShare = new ArrayList<>(serverMods);
+                        liveModsToShare.addAll(rediscoverClientMods());
+                        serverFileManager.buildManifest(packBuilder.buildModList(liveModsToShare));
+                    }
+                });
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to watch mod directories for changes, restart the server to pick up new mods", e);
+            }
         }
     }
 
-    private void discoverMods(final Path directory, final IDiscoveryPipeline pipeline, final Consumer<IModFile> consumer) {
+    /**
+     * Applies changes to {@code [server.limits]} as soon as the config file is saved, so that serving can be throttled
+     * in the middle of an event.
+     */
+    private void watchTransferLimits(final TransferLimiter transferLimiter) {
+        final Path configPath = getConfig().getNioPath();
+        try {
+            ModRootWatcher.start(List.of(configPath.getParent()), path -> path.equals(configPath.getFileName()), WATCH_DEBOUNCE_MILLIS, changedRoots -> {
+                final FileConfig config = FileConfig.of(configPath);
+                try {
+                    config.load();
+                    transferLimiter.update(readTransferLimits(config));
+                } catch (final ParsingException e) {
+                    LOGGER.warn("Failed to reload transfer limits from {}, keeping the current limits", configPath, e);
+                } finally {
+                    config.close();
+                }
+            });
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to watch {} for changes, restart the server to change transfer limits", configPath, e);
+        }
+    }
+
+    /**
+     * Client mods are only served, never loaded, so their metadata is read without the discovery pipeline, which holds
+     * on to the jars it reads. That way they can be replaced while the server runs, even on Windows.
+     */
+    private void readClientMods(final IDiscoveryPipeline pipeline) {
         final List<Path> fileList;
+        try {
+            fileList = listJars(clientModsDir);
+        } catch (final UncheckedIOException e) {
+            throw new ModLoadingException(ModLoadingIssue.error("fml.modloadingissue.failed_to_list_folder_content", clientModsDir)
+                    .withAffectedPath(clientModsDir)
+                    .withCause(e));
+        }
+        for (final Path file : fileList) {
+            if (!Files.isRegularFile(file)) {
+                pipeline.addIssue(ModLoadingIssue.warning("fml.modloadingissue.brokenfile.unknown").withAffectedPath(file));
+                continue;
+            }
+            try {
+                liveClientMods.put(file, new LiveModFile(PackEntry.read(file), FileStat.of(file)));
+            } catch (final IOException e) {
+                pipeline.addIssue(ModLoadingIssue.error("fml.modloadingissue.brokenfile").withAffectedPath(file).withCause(e));
+            }
+        }
+    }
+
+    /**
+     * Reads the current contents of clientmods, reusing what was already read for jars that have not changed. Unlike
+     * at startup, problems are only logged, as discovery has finished and there is no one left to report them to.
+     */
+    private List<PackEntry> rediscoverClientMods() {
+        final Map<Path, LiveModFile> previous = Map.copyOf(liveClientMods);
+        liveClientMods.clear();
+        for (final Path file : listJars(clientModsDir)) {
+            final FileStat stat = FileStat.of(file);
+            final LiveModFile known = previous.get(file);
+            if (known != null && known.stat().equals(stat)) {
+                liveClientMods.put(file, known);
+                continue;
+            }
+            try {
+                liveClientMods.put(file, new LiveModFile(PackEntry.read(file), stat));
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to read mod file {}, it will not be served until it changes again", file, e);
+            }
+        }
+        return liveClientMods.values().stream().map(LiveModFile::entry).toList();
+    }
+
+    private static List<Path> listJars(final Path directory) {
         try (final Stream<Path> files = Files.list(directory)) {
-            fileList = files
+            return files
                     .filter(path -> path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".jar"))
                     .sorted(Comparator.comparing(path -> path.getFileName().toString().toLowerCase(Locale.ROOT)))
                     .toList();
-        } catch (final UncheckedIOException | IOException e) {
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void discoverMods(final Path directory, final IDiscoveryPipeline pipeline, final Consumer<IModFile> consumer) {
+        final List<Path> fileList;
+        try {
+            fileList = listJars(directory);
+        } catch (final UncheckedIOException e) {
             throw new ModLoadingException(ModLoadingIssue.error("fml.modloadingissue.failed_to_list_folder_content", directory)
                     .withAffectedPath(directory)
                     .withCause(e));
@@ -128,6 +246,74 @@ public class ServerSidedPackHandler extends SidedPackHandler {
         }
     }
 
+    @Nullable
+    private static Set<InetAddress> readMetricsAddresses(final FileConfig config) {
+        if (!config.<Boolean>getOptional("server.metrics.enabled").orElse(false)) {
+            return null;
+        }
+        final Set<InetAddress> addresses = new HashSet<>();
+        for (final String address : config.<List<String>>getOptional("server.metrics.allowedAddresses").orElse(List.of("127.0.0.1", "::1"))) {
+            try {
+                addresses.add(InetAddress.getByName(address));
+            } catch (final UnknownHostException e) {
+                LOGGER.warn("Ignoring unknown metrics address {}", address);
+            }
+        }
+        LOGGER.info("Serving metrics at /metrics to {}", addresses);
+        return addresses;
+    }
+
+    private static TransferLimiter.Limits readTransferLimits(final FileConfig config) {
+        final TransferLimiter.Limits defaults = TransferLimiter.Limits.UNLIMITED;
+        return new TransferLimiter.Limits(
+                config.getOptionalLong("server.limits.globalBandwidthKb").orElse(defaults.globalBytesPerSecond() / 1024) * 1024,
+                config.getOptionalLong("server.limits.connectionBandwidthKb").orElse(defaults.connectionBytesPerSecond() / 1024) * 1024,
+                config.getOptionalInt("server.limits.maxConcurrentTransfers").orElse(defaults.maxConcurrentTransfers()),
+                config.getOptionalInt("server.limits.retryAfterSeconds").orElse(defaults.retryAfterSeconds())
+        );
+    }
+
+    private static SimpleHttpServer.Options readNetworkOptions(final FileConfig config) {
+        final SimpleHttpServer.Options defaults = SimpleHttpServer.Options.DEFAULT;
+        final int childThreads = config.getOptionalInt("server.network.threads").orElse(defaults.childThreads());
+        final int lowWaterMark = config.getOptionalInt("server.network.writeBufferLowKb").orElse(defaults.writeBufferLowWaterMark() / 1024) * 1024;
+        final int highWaterMark = config.getOptionalInt("server.network.writeBufferHighKb").orElse(defaults.writeBufferHighWaterMark() / 1024) * 1024;
+        if (childThreads < 1) {
+            LOGGER.warn("Invalid server.network.threads {}, using {}", childThreads, defaults.childThreads());
+        }
+        if (highWaterMark < lowWaterMark) {
+            LOGGER.warn("server.network.writeBufferHighKb must not be below writeBufferLowKb, using the defaults");
+        }
+        return new SimpleHttpServer.Options(
+                config.<Boolean>getOptional("server.network.nativeTransport").orElse(defaults.nativeTransport()),
+                childThreads >= 1 ? childThreads : defaults.childThreads(),
+                config.getOptionalInt("server.network.backlog").orElse(defaults.backlog()),
+                config.<Boolean>getOptional("server.network.tcpNoDelay").orElse(defaults.tcpNoDelay()),
+                config.<Boolean>getOptional("server.network.tcpCork").orElse(defaults.tcpCork()),
+                highWaterMark >= lowWaterMark ? lowWaterMark : defaults.writeBufferLowWaterMark(),
+                highWaterMark >= lowWaterMark ? highWaterMark : defaults.writeBufferHighWaterMark(),
+                config.getOptionalInt("server.network.idleTimeoutSeconds").orElse(defaults.idleTimeoutSeconds())
+        );
+    }
+
+    @Nullable
+    private CompressionCache buildCompressionCache(final FileConfig config) {
+        if (!config.<Boolean>getOptional("server.compression.enabled").orElse(true)) {
+            return null;
+        }
+        final long maxCacheSizeMb = config.getOptionalLong("server.compression.maxCacheSizeMb").orElse(1024);
+        return new CompressionCache(serverModsDir.resolve(".spl-cache").resolve("compressed"), maxCacheSizeMb * 1024 * 1024);
+    }
+
+    @Nullable
+    private static StaticExporter buildStaticExporter(final FileConfig config) {
+        if (!config.<Boolean>getOptional("server.export.enabled").orElse(false)) {
+            return null;
+        }
+        final Path directory = Path.of(config.<String>getOptional("server.export.directory").orElse("spl-export"));
+        return new StaticExporter(directory, config.<Boolean>getOptional("server.export.hardlink").orElse(true));
+    }
+
     @Nullable
     private static SslContext buildSslContext(@Nullable final String certificateChainFile, @Nullable final String keyFile) {
         if (certificateChainFile == null || keyFile == null) {
@@ -143,4 +329,18 @@ public class ServerSidedPackHandler extends SidedPackHandler {
         }
         return null;
     }
+
+    private record LiveModFile(PackEntry entry, @Nullable FileStat stat) {
+    }
+
+    private record FileStat(long size, FileTime lastModified) {
+        @Nullable
+        static FileStat of(final Path path) {
+            try {
+                return new FileStat(Files.size(path), Files.getLastModifiedTime(path));
+            } catch (final IOException e) {
+                return null;
+            }
+        }
+    }
 }
@@ -2,10 +2,17 @@ package cpw.mods.forge.serverpacklocator.server;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
@@ -13,24 +20,24 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple Http Server for serving file and manifest requests to clients.
  */
 public class SimpleHttpServer {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final NioEventLoopGroup PARENT_GROUP = new NioEventLoopGroup(1, new ThreadFactoryBuilder()
-            .setNameFormat("ServerPack Locator Parent - %d")
-            .setDaemon(true)
-            .build());
-    private static final NioEventLoopGroup CHILD_GROUP = new NioEventLoopGroup(1, new ThreadFactoryBuilder()
-            .setNameFormat("ServerPack Locator Child - %d")
-            .setDaemon(true)
-            .build());
 
     private static final int MAX_CONTENT_LENGTH = 2 << 19;
 
@@ -38,10 +45,19 @@ public class SimpleHttpServer {
         throw new IllegalArgumentException("Can not instantiate SimpleHttpServer.");
     }
 
-    public static void run(final ServerFileManager fileManager, final int port, @Nullable final SslContext sslContext) {
+    /**
+     * @param metricsAddresses the only addresses allowed to read {@code /metrics}, or {@code null} to disable it
+     * @return the bound server channel, which stops the server and its event loops when closed
+     */
+    public static Channel run(final ServerFileManager fileManager, final ServerMetrics metrics, final TransferLimiter transferLimiter, final int port, @Nullable final SslContext sslContext, @Nullable final Set<InetAddress> metricsAddresses, final Options options) {
+        final boolean epoll = options.nativeTransport() && Epoll.isAvailable();
+        final EventLoopGroup parentGroup = createEventLoopGroup(epoll, 1, "ServerPack Locator Parent - %d");
+        final EventLoopGroup childGroup = createEventLoopGroup(epoll, options.childThreads(), "ServerPack Locator Child - %d");
+        LOGGER.info("Serving with {} transport on {} threads", epoll ? "epoll" : "NIO", options.childThreads());
+
         final ServerBootstrap bootstrap = new ServerBootstrap()
-                .group(PARENT_GROUP, CHILD_GROUP)
-                .channel(NioServerSocketChannel.class)
+                .group(parentGroup, childGroup)
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
                 .handler(new ChannelInitializer<ServerSocketChannel>() {
                     @Override
                     protected void initChannel(final ServerSocketChannel channel) {
@@ -56,16 +72,77 @@ public class SimpleHttpServer {
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(final SocketChannel channel) {
+                        if (options.idleTimeoutSeconds() > 0) {
+                            channel.pipeline().addLast("idle", new IdleConnectionCloser(options.idleTimeoutSeconds()));
+                        }
+                        channel.pipeline().addLast("shaping", transferLimiter.trafficShaper());
                         if (sslContext != null) {
-                            channel.pipeline().addLast("ssl", sslContext.newHandler(channel.alloc()));
+                            final SslHandler sslHandler = sslContext.newHandler(channel.alloc());
+                            sslHandler.handshakeFuture().addListener(future -> {
+                                if (!future.isSuccess()) {
+                                    metrics.recordTlsHandshakeFailure();
+                                }
+                            });
+                            channel.pipeline().addLast("ssl", sslHandler);
                         }
                         channel.pipeline().addLast("codec", new HttpServerCodec());
                         channel.pipeline().addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
-                        channel.pipeline().addLast("request", new RequestHandler(fileManager));
+                        channel.pipeline().addLast("metrics", new MetricsHandler(metrics));
+                        channel.pipeline().addLast("chunked", new ChunkedWriteHandler());
+                        channel.pipeline().addLast("request", new RequestHandler(fileManager, metrics, transferLimiter, metricsAddresses));
                     }
                 })
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
-        bootstrap.bind(port).syncUninterruptibly();
+                .option(ChannelOption.SO_BACKLOG, options.backlog())
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, options.tcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(options.writeBufferLowWaterMark(), options.writeBufferHighWaterMark()));
+        if (epoll) {
+            bootstrap.childOption(EpollChannelOption.TCP_CORK, options.tcpCork());
+        } else if (options.tcpCork()) {
+            LOGGER.warn("TCP_CORK is only supported by the epoll transport, ignoring it");
+        }
+
+        final Channel channel = bootstrap.bind(port).syncUninterruptibly().channel();
+        channel.closeFuture().addListener(future -> {
+            parentGroup.shutdownGracefully();
+            childGroup.shutdownGracefully();
+        });
+        return channel;
+    }
+
+    private static EventLoopGroup createEventLoopGroup(final boolean epoll, final int threads, final String nameFormat) {
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(nameFormat)
+                .setDaemon(true)
+                .build();
+        return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    /**
+     * Socket and threading settings for the server.
+     *
+     * @param nativeTransport      whether to use epoll when it is available, rather than NIO
+     * @param childThreads         event loop threads serving client connections
+     * @param idleTimeoutSeconds   seconds without any traffic after which a connection is closed, or {@code 0} to never
+     *                             close idle connections
+     */
+    public record Options(boolean nativeTransport, int childThreads, int backlog, boolean tcpNoDelay, boolean tcpCork, int writeBufferLowWaterMark, int writeBufferHighWaterMark, int idleTimeoutSeconds) {
+        public static final Options DEFAULT = new Options(true, 1, 128, true, false, 256 * 1024, 1024 * 1024, 60);
+    }
+
+    /**
+     * Drops keep-alive connections that clients left open. Output progress counts as activity, so large files sent to
+     * slow clients are not cut off.
+     */
+    private static class IdleConnectionCloser extends IdleStateHandler {
+        IdleConnectionCloser(final int timeoutSeconds) {
+            super(true, 0, 0, timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected void channelIdle(final ChannelHandlerContext ctx, final IdleStateEvent evt) {
+            LOGGER.debug("Closing idle connection from {}", ctx.channel().remoteAddress());
+            ctx.close();
+        }
     }
 }
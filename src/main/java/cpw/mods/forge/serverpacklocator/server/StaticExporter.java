@@ -0,0 +1,289 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.logging.LogUtils;
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Lays the pack out as a directory that any static web server or CDN can serve in place of the pack server, with the
+ * same paths: {@code servermanifest.json}, {@code files/<name>} and {@code files/by-hash/<checksum>}. Every file gets a
+ * {@code .gz} sibling when a compressed variant exists, for servers that can send precompressed files, and the cache
+ * headers the pack server would send are written out as {@code _headers} and an nginx snippet.
+ * <p>
+ * Exports are incremental: only files that are missing or differ from their source are linked or copied, and the
+ * manifest is replaced last, so that a client never sees a manifest listing files that are not there yet. Files from
+ * the previous export are kept for one more generation, for clients that were in the middle of fetching them.
+ * <p>
+ * Files by checksum are cached as immutable, so they are always copied rather than linked, and the copy is checked
+ * against the checksum. A link would change along with its source if that was overwritten in place.
+ */
+class StaticExporter {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Exporter - %d")
+            .setDaemon(true)
+            .build());
+    private static final int COPY_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    private static final Executor COPY_EXECUTOR = Executors.newFixedThreadPool(COPY_THREADS, new ThreadFactoryBuilder()
+            .setNameFormat("ServerPackLocator Export Copier - %d")
+            .setDaemon(true)
+            .build());
+
+    private static final String MANIFEST_FILE_NAME = "servermanifest.json";
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final Path directory;
+    private final Path filesDirectory;
+    private final Path hashDirectory;
+    private final boolean hardlink;
+    // Only touched by the exporter thread
+    private Set<Path> previousFiles = Set.of();
+
+    StaticExporter(final Path directory, final boolean hardlink) {
+        this.directory = DirHandler.createDirIfNeeded(directory);
+        this.filesDirectory = DirHandler.createDirIfNeeded(directory.resolve("files"));
+        this.hashDirectory = DirHandler.createDirIfNeeded(filesDirectory.resolve("by-hash"));
+        this.hardlink = hardlink;
+    }
+
+    /**
+     * Exports the given manifest in the background once {@code ready} completes, such as when its compressed variants
+     * have been built.
+     *
+     * @return a future completing once the export has finished, whether or not it succeeded
+     */
+    CompletableFuture<Void> update(final ServerFileManager.Snapshot snapshot, @Nullable final CompressionCache compressionCache, final CompletableFuture<?> ready) {
+        return ready.handleAsync((unused, throwable) -> {
+            try {
+                export(snapshot, compressionCache);
+            } catch (final IOException | UncheckedIOException | CompletionException e) {
+                LOGGER.error("Failed to export server pack to {}", directory, e);
+            }
+            return null;
+        }, EXECUTOR);
+    }
+
+    private void export(final ServerFileManager.Snapshot snapshot, @Nullable final CompressionCache compressionCache) throws IOException {
+        final long startTime = System.nanoTime();
+        final Map<Path, Source> sources = new HashMap<>();
+        for (final ServerFileManager.PackFile file : snapshot.filesByName().values()) {
+            final Path target = DirHandler.resolveDirectChild(filesDirectory, file.data().fileName());
+            if (target == null || target.equals(hashDirectory)) {
+                LOGGER.warn("Not exporting {}, as its name cannot be served from {}", file.data().fileName(), filesDirectory);
+                continue;
+            }
+            addWithVariant(sources, target, file, false, compressionCache);
+        }
+        for (final ServerFileManager.PackFile file : snapshot.filesByChecksum().values()) {
+            addWithVariant(sources, hashDirectory.resolve(file.data().checksum().toString()), file, true, compressionCache);
+        }
+
+        final AtomicInteger exported = new AtomicInteger();
+        final List<CompletableFuture<Void>> copies = new ArrayList<>();
+        sources.forEach((target, source) -> copies.add(CompletableFuture.runAsync(() -> {
+            try {
+                if (!isUpToDate(source, target)) {
+                    linkOrCopy(source, target);
+                    exported.incrementAndGet();
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Failed to export " + source.path() + " to " + target, e);
+            }
+        }, COPY_EXECUTOR)));
+        CompletableFuture.allOf(copies.toArray(CompletableFuture[]::new)).join();
+
+        writeMetadata(snapshot.filesByName().keySet());
+        // Only now that every file it lists is in place
+        writeAtomically(directory.resolve(MANIFEST_FILE_NAME + GZIP_EXTENSION), snapshot.compressedJson());
+        writeAtomically(directory.resolve(MANIFEST_FILE_NAME), snapshot.json().getBytes(StandardCharsets.UTF_8));
+
+        final Set<Path> currentFiles = sources.keySet();
+        final int removed = removeStaleFiles(currentFiles);
+        previousFiles = Set.copyOf(currentFiles);
+        LOGGER.info("Exported server pack to {} in {} ms: {} files updated, {} removed", directory, (System.nanoTime() - startTime) / 1_000_000, exported.get(), removed);
+    }
+
+    /**
+     * @param byChecksum whether the target is addressed by the file's checksum, and so must hold exactly that content
+     */
+    private static void addWithVariant(final Map<Path, Source> sources, final Path target, final ServerFileManager.PackFile file, final boolean byChecksum, @Nullable final CompressionCache compressionCache) {
+        if (file.path() == null) {
+            return;
+        }
+        sources.put(target, new Source(file.path(), byChecksum ? file.data().checksum() : null));
+        // Variants are only ever replaced in the compression cache, never overwritten, so they can always be linked
+        final Path variant = compressionCache != null ? compressionCache.findVariant(file.data().checksum()) : null;
+        if (variant != null) {
+            sources.put(target.resolveSibling(target.getFileName() + GZIP_EXTENSION), new Source(variant, null));
+        }
+    }
+
+    /**
+     * Links share their source's attributes, and copies take them along, so a target with the same size and time as
+     * its source has the same content. A verified copy of a file by checksum never needs replacing, unless it is still
+     * a link left by an older version.
+     */
+    private static boolean isUpToDate(final Source source, final Path target) {
+        try {
+            if (source.checksum() != null) {
+                return Files.isRegularFile(target) && !Files.isSameFile(source.path(), target);
+            }
+            return Files.isRegularFile(target)
+                    && Files.size(target) == Files.size(source.path())
+                    && Files.getLastModifiedTime(target).equals(Files.getLastModifiedTime(source.path()));
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private void linkOrCopy(final Source source, final Path target) throws IOException {
+        // The web server may be reading the directory at any time, so never expose a half-written file
+        final Path tempPath = target.resolveSibling(target.getFileName() + TEMP_EXTENSION);
+        try {
+            if (source.checksum() != null) {
+                copyVerified(source.path(), tempPath, source.checksum());
+                move(tempPath, target);
+                return;
+            }
+            boolean linked = false;
+            if (hardlink) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                    Files.createLink(tempPath, source.path());
+                    linked = true;
+                } catch (final IOException | UnsupportedOperationException e) {
+                    // Most likely on a different filesystem, or one without hardlinks
+                    LOGGER.debug("Could not link {} to {}, copying instead", source.path(), target, e);
+                }
+            }
+            if (!linked) {
+                Files.copy(source.path(), tempPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            move(tempPath, target);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Copies a file, failing if it no longer has the given checksum, as when it was overwritten after being hashed.
+     */
+    private static void copyVerified(final Path source, final Path target, final HashCode checksum) throws IOException {
+        final MessageDigest digest = FileChecksumValidator.newDigest();
+        try (final InputStream input = new DigestInputStream(Files.newInputStream(source), digest)) {
+            Files.copy(input, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (!HashCode.fromBytes(digest.digest()).equals(checksum)) {
+            throw new IOException("File " + source + " changed since it was hashed");
+        }
+    }
+
+    /**
+     * Describes the cache headers for hosts that read them from the site itself, such as Netlify or Cloudflare Pages,
+     * and for nginx, which needs them in its own config. Only content addressed by checksum may be cached as immutable.
+     */
+    private void writeMetadata(final Collection<String> fileNames) throws IOException {
+        // Hosts reading _headers combine every rule that matches a path, so the rules must not overlap
+        final StringBuilder headers = new StringBuilder()
+                .append("/").append(MANIFEST_FILE_NAME).append("\n")
+                .append("  Cache-Control: ").append(RequestHandler.MANIFEST_CACHE_CONTROL).append("\n")
+                .append("/files/by-hash/*\n")
+                .append("  Cache-Control: ").append(RequestHandler.FILE_BY_HASH_CACHE_CONTROL).append("\n");
+        for (final String fileName : fileNames.stream().sorted().toList()) {
+            headers.append("/files/").append(URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20")).append("\n")
+                    .append("  Cache-Control: ").append(RequestHandler.FILE_BY_NAME_CACHE_CONTROL).append("\n");
+        }
+        writeAtomically(directory.resolve("_headers"), headers.toString().getBytes(StandardCharsets.UTF_8));
+
+        final String nginx = "# Include in the server block serving " + directory.toAbsolutePath() + "\n"
+                + "gzip_static on;\n"
+                + "location = /" + MANIFEST_FILE_NAME + " {\n"
+                + "    add_header Cache-Control \"" + RequestHandler.MANIFEST_CACHE_CONTROL + "\";\n"
+                + "}\n"
+                + "location /files/ {\n"
+                + "    types { }\n"
+                + "    default_type application/octet-stream;\n"
+                + "    add_header Cache-Control \"" + RequestHandler.FILE_BY_NAME_CACHE_CONTROL + "\";\n"
+                + "}\n"
+                + "location /files/by-hash/ {\n"
+                + "    types { }\n"
+                + "    default_type application/octet-stream;\n"
+                + "    add_header Cache-Control \"" + RequestHandler.FILE_BY_HASH_CACHE_CONTROL + "\";\n"
+                + "}\n";
+        writeAtomically(directory.resolve("nginx.conf"), nginx.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Removes files that are in neither this export nor the previous one, along with anything left over from an
+     * export that was interrupted.
+     */
+    private int removeStaleFiles(final Set<Path> currentFiles) throws IOException {
+        final Set<Path> retained = new HashSet<>(currentFiles);
+        retained.addAll(previousFiles);
+        final List<Path> stale;
+        try (final Stream<Path> files = Files.walk(filesDirectory)) {
+            stale = files.filter(Files::isRegularFile)
+                    .filter(path -> !retained.contains(path) || path.getFileName().toString().endsWith(TEMP_EXTENSION))
+                    .toList();
+        }
+        for (final Path path : stale) {
+            Files.deleteIfExists(path);
+        }
+        return stale.size();
+    }
+
+    private static void writeAtomically(final Path path, @Nullable final byte[] content) throws IOException {
+        if (content == null) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        final Path tempPath = path.resolveSibling(path.getFileName() + TEMP_EXTENSION);
+        Files.write(tempPath, content);
+        move(tempPath, path);
+    }
+
+    /**
+     * @param checksum the checksum the copy must have, or {@code null} if the target is not addressed by it
+     */
+    private record Source(Path path, @Nullable HashCode checksum) {
+    }
+
+    private static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.logging.LogUtils;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import org.slf4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps pack serving from crowding out game traffic, by capping the bandwidth used for all clients together and for
+ * each connection, and by bounding how many files are sent at once. Every limit can be changed while the server runs.
+ */
+class TransferLimiter {
+    private static final Logger LOGGER = LogUtils.getLogger();
+
+    private final GlobalChannelTrafficShapingHandler trafficShaper;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private volatile Limits limits;
+
+    TransferLimiter(final Limits limits) {
+        this.trafficShaper = new GlobalChannelTrafficShapingHandler(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ServerPackLocator Traffic Shaping - %d")
+                .setDaemon(true)
+                .build()));
+        update(limits);
+    }
+
+    /**
+     * Applies new limits to both new and existing connections. Transfers already running above a lowered
+     * {@link Limits#maxConcurrentTransfers()} are allowed to finish.
+     */
+    void update(final Limits limits) {
+        // Uploads are only ever small requests, so we never limit reading
+        trafficShaper.configure(limits.globalBytesPerSecond(), 0);
+        trafficShaper.configureChannel(limits.connectionBytesPerSecond(), 0);
+        this.limits = limits;
+        LOGGER.info("Transfer limits: {}", limits);
+    }
+
+    /**
+     * Shared by every connection. Must sit below the TLS handler, so that it shapes what actually goes on the wire.
+     */
+    ChannelHandler trafficShaper() {
+        return trafficShaper;
+    }
+
+    /**
+     * Bandwidth can only be shaped as it is written out in chunks, not when the kernel sends a whole file at once.
+     */
+    boolean isShaping() {
+        final Limits limits = this.limits;
+        return limits.globalBytesPerSecond() > 0 || limits.connectionBytesPerSecond() > 0;
+    }
+
+    /**
+     * @return whether a transfer may start, in which case {@link #release()} must be called once it ends
+     */
+    boolean tryAcquire() {
+        final int maxTransfers = limits.maxConcurrentTransfers();
+        while (true) {
+            final int active = activeTransfers.get();
+            if (maxTransfers > 0 && active >= maxTransfers) {
+                return false;
+            }
+            if (activeTransfers.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        activeTransfers.decrementAndGet();
+    }
+
+    int activeTransfers() {
+        return activeTransfers.get();
+    }
+
+    int retryAfterSeconds() {
+        return limits.retryAfterSeconds();
+    }
+
+    /**
+     * @param globalBytesPerSecond     bandwidth shared by all clients, or {@code 0} for no limit
+     * @param connectionBytesPerSecond bandwidth for each connection, or {@code 0} for no limit
+     * @param maxConcurrentTransfers   files that may be sent at once, or {@code 0} for no limit
+     * @param retryAfterSeconds        how long clients turned away are told to wait
+     */
+    record Limits(long globalBytesPerSecond, long connectionBytesPerSecond, int maxConcurrentTransfers, int retryAfterSeconds) {
+        static final Limits UNLIMITED = new Limits(0, 0, 0, 5);
+    }
+}
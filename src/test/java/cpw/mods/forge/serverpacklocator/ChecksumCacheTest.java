@@ -0,0 +1,82 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChecksumCacheTest {
+    private static final Set<HashAlgorithm> BOTH = EnumSet.of(HashAlgorithm.SHA256, HashAlgorithm.FAST);
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private ChecksumCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        final byte[] content = new byte[300_000];
+        new Random(1).nextBytes(content);
+        file = Files.write(dir.resolve("file.jar"), content);
+        cache = ChecksumCache.load(dir.resolve("checksumcache.json"));
+    }
+
+    @Test
+    void computesEveryHashInOneRead() {
+        final long before = FileChecksumValidator.hashedBytes();
+        final Map<HashAlgorithm, HashCode> hashes = cache.getOrComputeAll(List.of(file), BOTH).join().get(file);
+
+        assertEquals(300_000, FileChecksumValidator.hashedBytes() - before);
+        assertEquals(FileChecksumValidator.computeHashFor(file, HashAlgorithm.SHA256), hashes.get(HashAlgorithm.SHA256));
+        assertEquals(FileChecksumValidator.computeHashFor(file, HashAlgorithm.FAST), hashes.get(HashAlgorithm.FAST));
+    }
+
+    @Test
+    void onlyComputesMissingHashes() {
+        final HashCode checksum = cache.getOrComputeAll(List.of(file)).join().get(file);
+
+        final long before = FileChecksumValidator.hashedBytes();
+        final Map<HashAlgorithm, HashCode> hashes = cache.getOrComputeAll(List.of(file), BOTH).join().get(file);
+        assertEquals(300_000, FileChecksumValidator.hashedBytes() - before);
+        assertEquals(checksum, hashes.get(HashAlgorithm.SHA256));
+
+        final long cachedBefore = FileChecksumValidator.hashedBytes();
+        assertEquals(hashes, cache.getOrComputeAll(List.of(file), BOTH).join().get(file));
+        assertEquals(0, FileChecksumValidator.hashedBytes() - cachedBefore);
+    }
+
+    @Test
+    void keepsHashesAcrossSave() {
+        final Map<HashAlgorithm, HashCode> hashes = cache.getOrComputeAll(List.of(file), BOTH).join().get(file);
+        cache.save();
+
+        final ChecksumCache loaded = ChecksumCache.load(dir.resolve("checksumcache.json"));
+        final long before = FileChecksumValidator.hashedBytes();
+        assertEquals(hashes, loaded.getOrComputeAll(List.of(file), BOTH).join().get(file));
+        assertEquals(0, FileChecksumValidator.hashedBytes() - before);
+    }
+
+    @Test
+    void dropsFilesNotLookedUpSinceLastSave() throws IOException {
+        final Path other = Files.writeString(dir.resolve("other.jar"), "other");
+        cache.getOrComputeAll(List.of(file, other)).join();
+        cache.save();
+        cache.getOrComputeAll(List.of(file)).join();
+        cache.save();
+
+        final ChecksumCache loaded = ChecksumCache.load(dir.resolve("checksumcache.json"));
+        assertEquals(Set.of(file), loaded.getAllCached(List.of(file, other)).keySet());
+    }
+}
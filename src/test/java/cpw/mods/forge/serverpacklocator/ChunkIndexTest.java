@@ -0,0 +1,91 @@
+package cpw.mods.forge.serverpacklocator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkIndexTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void chunksCoverWholeFile() throws IOException {
+        final byte[] content = randomBytes(1, 1_000_000);
+        final ChunkIndex index = index("file.bin", content);
+
+        assertEquals(content.length, index.size());
+        assertTrue(index.chunks().size() > 1);
+        final List<ChunkIndex.Chunk> chunks = index.chunks();
+        for (int i = 0; i < chunks.size(); i++) {
+            final int length = chunks.get(i).length();
+            assertTrue(length <= 64 * 1024, "chunk " + i + " is larger than the maximum");
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= 4 * 1024, "chunk " + i + " is smaller than the minimum");
+            }
+        }
+    }
+
+    @Test
+    void sameContentGivesSameChunks() throws IOException {
+        final byte[] content = randomBytes(2, 300_000);
+        assertEquals(index("a.bin", content), index("b.bin", content));
+    }
+
+    @Test
+    void emptyFileHasNoChunks() throws IOException {
+        assertEquals(List.of(), index("empty.bin", new byte[0]).chunks());
+    }
+
+    @Test
+    void insertionOnlyChangesNearbyChunks() throws IOException {
+        final byte[] original = randomBytes(3, 1_000_000);
+        final byte[] edited = new byte[original.length + 100];
+        final int insertAt = original.length / 2;
+        System.arraycopy(original, 0, edited, 0, insertAt);
+        System.arraycopy(randomBytes(4, 100), 0, edited, insertAt, 100);
+        System.arraycopy(original, insertAt, edited, insertAt + 100, original.length - insertAt);
+
+        final List<ChunkIndex.Chunk> before = index("before.bin", original).chunks();
+        final List<ChunkIndex.Chunk> after = index("after.bin", edited).chunks();
+
+        final int commonPrefix = commonPrefix(before, after);
+        final int commonSuffix = commonPrefix(before.reversed(), after.reversed());
+        // The boundaries resynchronise shortly after the edit, so only a couple of chunks around it differ
+        assertTrue(before.size() - commonPrefix - commonSuffix <= 2, "too many chunks changed");
+        assertTrue(commonPrefix > 0 && commonSuffix > 0);
+    }
+
+    @Test
+    void roundTripsThroughJson() throws IOException {
+        final ChunkIndex index = index("file.bin", randomBytes(5, 200_000));
+        assertEquals(index, ChunkIndex.parse(index.toJson()).getOrThrow());
+    }
+
+    private ChunkIndex index(final String name, final byte[] content) throws IOException {
+        final Path file = dir.resolve(name);
+        Files.write(file, content);
+        return ChunkIndex.of(file);
+    }
+
+    private static int commonPrefix(final List<ChunkIndex.Chunk> left, final List<ChunkIndex.Chunk> right) {
+        int count = 0;
+        while (count < left.size() && count < right.size() && left.get(count).equals(right.get(count))) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] randomBytes(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
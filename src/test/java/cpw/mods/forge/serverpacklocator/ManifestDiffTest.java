@@ -0,0 +1,94 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import com.mojang.serialization.DataResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestDiffTest {
+    private static final ServerManifest.ModFileData KEPT = file("kept", "kept.jar", 1);
+    private static final ServerManifest.ModFileData CHANGED_OLD = file("changed", "changed.jar", 2);
+    private static final ServerManifest.ModFileData CHANGED_NEW = file("changed", "changed.jar", 3);
+    private static final ServerManifest.ModFileData REMOVED = file("removed", "removed.jar", 4);
+    private static final ServerManifest.ModFileData ADDED = file("added", "added.jar", 5);
+
+    private static final ServerManifest BASE = manifest(KEPT, CHANGED_OLD, REMOVED);
+    private static final ServerManifest TARGET = manifest(KEPT, CHANGED_NEW, ADDED);
+
+    @Test
+    void describesChanges() {
+        final ManifestDiff diff = diff(BASE, TARGET);
+
+        assertEquals(List.of(ADDED), diff.added());
+        assertEquals(List.of(CHANGED_NEW), diff.changed());
+        assertEquals(List.of("removed.jar"), diff.removed());
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    void appliesToBase() {
+        assertEquals(TARGET, diff(BASE, TARGET).applyTo(BASE).getOrThrow());
+        assertEquals(BASE, diff(TARGET, BASE).applyTo(TARGET).getOrThrow());
+    }
+
+    @Test
+    void treatsHashChangesAsChanged() {
+        final ServerManifest.ModFileData withHash = new ServerManifest.ModFileData("kept", KEPT.checksum(), "kept.jar", KEPT.size(), Map.of(HashAlgorithm.FAST.id(), checksum(6)));
+        final ManifestDiff diff = diff(manifest(KEPT), manifest(withHash));
+
+        assertEquals(List.of(withHash), diff.changed());
+    }
+
+    @Test
+    void isEmptyForSameManifest() {
+        final ManifestDiff diff = diff(BASE, BASE);
+
+        assertTrue(diff.isEmpty());
+        assertEquals(BASE, diff.applyTo(BASE).getOrThrow());
+    }
+
+    @Test
+    void rejectsWrongBase() {
+        final ManifestDiff diff = diff(BASE, TARGET);
+
+        assertTrue(diff.applyTo(manifest(KEPT, CHANGED_OLD)).error().isPresent(), "removed file is missing");
+        assertTrue(diff.applyTo(manifest(KEPT, REMOVED)).error().isPresent(), "changed file is missing");
+        assertTrue(diff.applyTo(manifest(KEPT, CHANGED_OLD, REMOVED, ADDED)).error().isPresent(), "added file is already there");
+    }
+
+    @Test
+    void roundTripsThroughJson() {
+        final ManifestDiff diff = diff(BASE, TARGET);
+        final DataResult<ManifestDiff> parsed = ManifestDiff.parse(diff.toJson());
+
+        assertEquals(diff, parsed.getOrThrow());
+    }
+
+    private static ManifestDiff diff(final ServerManifest base, final ServerManifest target) {
+        return ManifestDiff.between(ServerManifest.hash(base.toJson()), base, ServerManifest.hash(target.toJson()), target);
+    }
+
+    private static ServerManifest manifest(final ServerManifest.ModFileData... files) {
+        final ServerManifest.Builder builder = new ServerManifest.Builder();
+        for (final ServerManifest.ModFileData file : files) {
+            builder.add(file);
+        }
+        return builder.build();
+    }
+
+    private static ServerManifest.ModFileData file(final String rootModId, final String fileName, final int content) {
+        return new ServerManifest.ModFileData(rootModId, checksum(content), fileName, content * 100L, Map.of());
+    }
+
+    private static HashCode checksum(final int content) {
+        final byte[] bytes = new byte[32];
+        bytes[0] = (byte) content;
+        return HashCode.fromBytes(bytes);
+    }
+}
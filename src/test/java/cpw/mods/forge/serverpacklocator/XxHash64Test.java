@@ -0,0 +1,70 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.common.hash.HashCode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Expected values are from the reference implementation, as printed by {@code xxhsum -H64}.
+ */
+class XxHash64Test {
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "''|ef46db3751d8e999",
+            "a|d24ec4f1a98c6e5b",
+            "abc|44bc2cf5ad770999",
+            "message digest|066ed728fceeb3be",
+            "abcdefghijklmnopqrstuvwxyz|cfe1f278fa89835c",
+            "The quick brown fox jumps over the lazy dog|0b242d361fda71bc",
+    })
+    void hashesText(final String text, final String expected) {
+        assertEquals(HashCode.fromString(expected), hash(text.getBytes(StandardCharsets.US_ASCII), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Lengths around the 8 and 4 byte tail steps and the 32 byte stripe, fed in slices that do and do not line up with
+     * stripes.
+     */
+    @ParameterizedTest
+    @CsvSource({
+            "1, e934a84adb052768",
+            "3, e5c7bb4533bc65dd",
+            "4, ffced8604453cc1e",
+            "7, 14cc643f630c72d2",
+            "8, 884a173614b81b8d",
+            "9, 67d85784a7c78c5b",
+            "31, c346d2b59b4d8ee1",
+            "32, cbf59c5116ff32b4",
+            "33, 0c535d1acafb8ead",
+            "63, e26aa9e2a95f8e4f",
+            "64, f7c67301db6713f0",
+            "65, c31eb63b2ae4465b",
+            "100, 6ac1e58032166597",
+            "1000, 6ef436b00eba4078",
+            "100000, f7a005162637d2fa",
+    })
+    void hashesInAnySlices(final int length, final String expected) {
+        final byte[] input = new byte[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = (byte) i;
+        }
+        for (final int sliceSize : new int[]{1, 5, 32, 33, Integer.MAX_VALUE}) {
+            assertEquals(HashCode.fromString(expected), hash(input, sliceSize), "slices of " + sliceSize);
+        }
+    }
+
+    private static HashCode hash(final byte[] input, final int sliceSize) {
+        final HashAlgorithm.Digest digest = HashAlgorithm.XXH64.newDigest();
+        for (int offset = 0; offset < input.length; offset += sliceSize) {
+            final ByteBuffer slice = ByteBuffer.wrap(input, offset, Math.min(sliceSize, input.length - offset));
+            digest.update(slice);
+            assertEquals(0, slice.remaining());
+        }
+        return digest.finish();
+    }
+}
@@ -0,0 +1,122 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BundleDownloaderTest {
+    private static final byte[] CONTENT = "content of the file\n".getBytes(StandardCharsets.UTF_8);
+    private static final ServerManifest.ModFileData FILE = new ServerManifest.ModFileData("mod", Hashing.sha256().hashBytes(CONTENT), "mod.jar", CONTENT.length, Map.of());
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    // Statuses to answer with, in order, sending the bundle once they run out
+    private final Queue<Integer> statuses = new ArrayDeque<>();
+    private final BundleDownloader downloader = new BundleDownloader(HttpClient.newHttpClient(), "test");
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(BundleFormat.PATH, this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void keepsBundlesAfterFailedRequest() throws InterruptedException, IOException {
+        statuses.add(500);
+
+        assertEquals(Set.of(), download());
+        assertEquals(Set.of(FILE), download());
+        assertEquals(2, requests.get());
+        assertArrayEquals(CONTENT, Files.readAllBytes(dir.resolve(FILE.fileName())));
+    }
+
+    @Test
+    void stopsAskingWhenEndpointIsMissing() throws InterruptedException {
+        statuses.add(404);
+
+        assertEquals(Set.of(), download());
+        assertEquals(Set.of(), download());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void treatsBadRequestAsPerRequestOnceBundlesWorked() throws InterruptedException {
+        assertEquals(Set.of(FILE), download());
+        statuses.add(400);
+
+        assertEquals(Set.of(), download());
+        assertEquals(Set.of(FILE), download());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    void stopsAskingServersThatRejectEveryPost() throws InterruptedException {
+        statuses.add(400);
+
+        assertEquals(Set.of(), download());
+        assertEquals(Set.of(), download());
+        assertEquals(1, requests.get());
+    }
+
+    private Set<ServerManifest.ModFileData> download() throws InterruptedException {
+        final URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + BundleFormat.PATH);
+        return downloader.download(uri, List.of(FILE), file -> dir.resolve(file.fileName()), new DownloadProgress(List.of(FILE), message -> {}));
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (exchange) {
+            exchange.getRequestBody().readAllBytes();
+            final Integer status = statuses.poll();
+            if (status != null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            final ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(bundle);
+            output.write(FILE.checksum().asBytes());
+            output.writeLong(CONTENT.length);
+            output.write(CONTENT);
+            exchange.sendResponseHeaders(200, bundle.size());
+            try (final OutputStream body = exchange.getResponseBody()) {
+                bundle.writeTo(body);
+            }
+        }
+    }
+}
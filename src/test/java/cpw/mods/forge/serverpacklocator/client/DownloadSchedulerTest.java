@@ -0,0 +1,153 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadSchedulerTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void runsLargestFirstWithinConcurrency() {
+        final List<String> started = new CopyOnWriteArrayList<>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<DownloadScheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final String name = "file" + i;
+            tasks.add(new DownloadScheduler.Task(name, i, () -> {
+                started.add(name);
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(5);
+                running.decrementAndGet();
+            }));
+        }
+
+        new DownloadScheduler(1, executor).run(tasks).join();
+
+        assertEquals(List.of("file9", "file8", "file7", "file6", "file5", "file4", "file3", "file2", "file1", "file0"), started);
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    void failureInterruptsRunningTasks() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger startedAfterFailure = new AtomicInteger();
+        final DownloadScheduler.Task slow = new DownloadScheduler.Task("slow", 100, () -> {
+            blocked.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        final DownloadScheduler.Task failing = new DownloadScheduler.Task("failing", 50, () -> {
+            awaitQuietly(blocked);
+            throw new IllegalStateException("Download failed");
+        });
+        final DownloadScheduler.Task queued = new DownloadScheduler.Task("queued", 0, startedAfterFailure::incrementAndGet);
+
+        final CompletableFuture<Void> result = new DownloadScheduler(2, executor).run(List.of(slow, failing, queued));
+
+        final CompletionException e = assertThrows(CompletionException.class, result::join);
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS), "running task was not interrupted");
+        assertEquals(0, startedAfterFailure.get());
+    }
+
+    @Test
+    void spareSlotsCountTowardsConcurrency() throws InterruptedException {
+        final DownloadScheduler scheduler = new DownloadScheduler(3, executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch checked = new CountDownLatch(1);
+        final AtomicInteger spareWhileQueued = new AtomicInteger(-1);
+        final CountDownLatch smallDone = new CountDownLatch(4);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<DownloadScheduler.Task> tasks = new ArrayList<>();
+        tasks.add(new DownloadScheduler.Task("large", 100, () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            // Every other slot is taken or wanted by a queued task
+            spareWhileQueued.set(scheduler.tryAcquireSpareSlots(2));
+            scheduler.releaseSpareSlots(spareWhileQueued.get());
+            checked.countDown();
+            awaitQuietly(release);
+            running.decrementAndGet();
+        }));
+        for (int i = 0; i < 4; i++) {
+            tasks.add(new DownloadScheduler.Task("small" + i, 1, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                awaitQuietly(checked);
+                sleep(5);
+                running.decrementAndGet();
+                smallDone.countDown();
+            }));
+        }
+        final CompletableFuture<Void> result = scheduler.run(tasks);
+        assertTrue(smallDone.await(10, TimeUnit.SECONDS));
+        // Only the large task is left, so the slots of the others are spare once they have been given back
+        int spareWhenLast = 0;
+        for (int attempt = 0; attempt < 1000 && spareWhenLast < 2; attempt++) {
+            scheduler.releaseSpareSlots(spareWhenLast);
+            Thread.sleep(1);
+            spareWhenLast = scheduler.tryAcquireSpareSlots(5);
+        }
+        scheduler.releaseSpareSlots(spareWhenLast);
+        release.countDown();
+        result.join();
+
+        assertEquals(0, spareWhileQueued.get());
+        assertEquals(2, spareWhenLast);
+        assertEquals(3, maxRunning.get());
+    }
+
+    @Test
+    void queuedTasksWaitForSpareSlots() throws InterruptedException {
+        final DownloadScheduler scheduler = new DownloadScheduler(2, executor);
+        assertEquals(2, scheduler.tryAcquireSpareSlots(2));
+        final AtomicInteger started = new AtomicInteger();
+        final CompletableFuture<Void> result = scheduler.run(List.of(new DownloadScheduler.Task("file", 1, started::incrementAndGet)));
+
+        Thread.sleep(20);
+        assertEquals(0, started.get());
+        scheduler.releaseSpareSlots(2);
+        result.join();
+        assertEquals(1, started.get());
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
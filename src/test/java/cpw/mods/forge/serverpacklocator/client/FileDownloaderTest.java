@@ -0,0 +1,117 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileDownloaderTest {
+    private static final byte[] CONTENT = "content of the file\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+    private static final ServerManifest.ModFileData FILE = new ServerManifest.ModFileData("mod", Hashing.sha256().hashBytes(CONTENT), "mod.jar", CONTENT.length, Map.of());
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void startsAfreshWhenServerSendsWrongRange() throws IOException, InterruptedException {
+        final Path target = dir.resolve("mod.jar");
+        Files.write(dir.resolve("mod.jar" + FileDownloader.PART_EXTENSION), Arrays.copyOf(CONTENT, 100));
+        serve(exchange -> {
+            if (exchange.getRequestHeaders().containsKey("Range")) {
+                // Not the range that was asked for
+                exchange.getResponseHeaders().set("Content-Range", "bytes 0-99/" + CONTENT.length);
+                send(exchange, 206, Arrays.copyOf(CONTENT, 100));
+            } else {
+                send(exchange, 200, CONTENT);
+            }
+        });
+
+        download(target);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        assertEquals(2, requests.get());
+        assertFalse(Files.exists(dir.resolve("mod.jar" + FileDownloader.PART_EXTENSION)));
+    }
+
+    @Test
+    void retriesUnexpectedStatus() throws IOException, InterruptedException {
+        final Path target = dir.resolve("mod.jar");
+        serve(exchange -> send(exchange, requests.get() == 1 ? 500 : 200, requests.get() == 1 ? new byte[0] : CONTENT));
+
+        download(target);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void failsWithIOExceptionWhenFileIsMissing() {
+        serve(exchange -> send(exchange, 404, new byte[0]));
+
+        assertThrows(IOException.class, () -> download(dir.resolve("mod.jar")));
+        assertFalse(Files.exists(dir.resolve("mod.jar")));
+    }
+
+    private void download(final Path target) throws IOException, InterruptedException {
+        final DownloadProgress progress = new DownloadProgress(List.of(FILE), message -> {});
+        new FileDownloader(client, "test").download(FILE, URI.create("http://localhost:" + server.getAddress().getPort() + "/files/mod.jar"), target, progress.file(FILE));
+    }
+
+    private void serve(final Handler handler) {
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try (exchange) {
+                handler.handle(exchange);
+            }
+        });
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (final OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
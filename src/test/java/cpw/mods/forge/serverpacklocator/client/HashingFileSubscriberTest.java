@@ -0,0 +1,155 @@
+package cpw.mods.forge.serverpacklocator.client;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashingFileSubscriberTest {
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 10, 11, 4096, Integer.MAX_VALUE})
+    void inflatesGzipInAnySlices(final int sliceSize) throws IOException {
+        final byte[] content = content();
+        final Path file = dir.resolve("file.bin");
+
+        final AtomicLong progress = new AtomicLong();
+        final HashCode hash = receive(file, "gzip", gzip(content), sliceSize, progress).join();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertEquals(content.length, progress.get(), "progress counts the inflated content");
+        assertEquals(HashCode.fromBytes(FileChecksumValidator.newDigest().digest(content)), hash);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 5, Integer.MAX_VALUE})
+    void skipsOptionalHeaderFields(final int sliceSize) throws IOException {
+        final byte[] content = content();
+        final Path file = dir.resolve("file.bin");
+
+        receive(file, "gzip", gzipWithAllHeaderFields(content), sliceSize).join();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    void writesIdentityBodyAsIs() throws IOException {
+        final byte[] content = content();
+        final Path file = dir.resolve("file.bin");
+
+        final AtomicLong progress = new AtomicLong();
+        receive(file, "identity", content, 1000, progress).join();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertEquals(content.length, progress.get());
+    }
+
+    @Test
+    void failsOnTruncatedGzip() throws IOException {
+        final byte[] compressed = gzip(content());
+        final byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        final CompletionException e = assertThrows(CompletionException.class, () -> receive(dir.resolve("file.bin"), "gzip", truncated, 100).join());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    void failsOnNonGzipBody() {
+        final byte[] body = "definitely not gzip".getBytes(StandardCharsets.UTF_8);
+
+        final CompletionException e = assertThrows(CompletionException.class, () -> receive(dir.resolve("file.bin"), "gzip", body, 100).join());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    private static CompletableFuture<HashCode> receive(final Path file, final String contentEncoding, final byte[] body, final int sliceSize) {
+        return receive(file, contentEncoding, body, sliceSize, new AtomicLong());
+    }
+
+    private static CompletableFuture<HashCode> receive(final Path file, final String contentEncoding, final byte[] body, final int sliceSize, final AtomicLong progress) {
+        final HashingFileSubscriber subscriber = HashingFileSubscriber.create(file, false, FileChecksumValidator.newDigest(), contentEncoding, progress::addAndGet);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(final long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        for (int offset = 0; offset < body.length; offset += sliceSize) {
+            final int length = Math.min(sliceSize, body.length - offset);
+            subscriber.onNext(List.of(ByteBuffer.wrap(body, offset, length).slice()));
+        }
+        subscriber.onComplete();
+        return subscriber.getBody().toCompletableFuture();
+    }
+
+    private static byte[] content() {
+        // Half compressible text and half noise, so that the inflater produces output in several rounds
+        final byte[] content = new byte[200_000];
+        final byte[] text = "The quick brown fox jumps over the lazy dog. ".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < content.length / 2; i++) {
+            content[i] = text[i % text.length];
+        }
+        final byte[] noise = new byte[content.length / 2];
+        new Random(1).nextBytes(noise);
+        System.arraycopy(noise, 0, content, content.length / 2, noise.length);
+        return content;
+    }
+
+    private static byte[] gzip(final byte[] content) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(content);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] gzipWithAllHeaderFields(final byte[] content) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // FHCRC | FEXTRA | FNAME | FCOMMENT
+        output.writeBytes(new byte[]{0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, (byte) 0xff});
+        output.writeBytes(new byte[]{3, 0, 'a', 'b', 'c'});
+        output.writeBytes("file.bin\0".getBytes(StandardCharsets.ISO_8859_1));
+        output.writeBytes("a comment\0".getBytes(StandardCharsets.ISO_8859_1));
+        // The header CRC is not checked
+        output.writeBytes(new byte[]{0, 0});
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(content);
+        deflater.finish();
+        final byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        // Neither is the trailer
+        output.writeBytes(new byte[8]);
+        return output.toByteArray();
+    }
+}
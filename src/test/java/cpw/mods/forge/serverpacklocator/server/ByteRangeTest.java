@@ -0,0 +1,59 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ByteRangeTest {
+    @Test
+    void parsesClosedRange() {
+        final ByteRange range = ByteRange.parse("bytes=10-19", 100);
+        assertEquals(new ByteRange(10, 19), range);
+        assertEquals(10, range.length());
+        assertEquals("bytes 10-19/100", range.toContentRange(100));
+    }
+
+    @Test
+    void parsesOpenEndedRange() {
+        assertEquals(new ByteRange(90, 99), ByteRange.parse("bytes=90-", 100));
+    }
+
+    @Test
+    void parsesSuffixRange() {
+        assertEquals(new ByteRange(75, 99), ByteRange.parse("bytes=-25", 100));
+        assertEquals(new ByteRange(0, 99), ByteRange.parse("bytes=-500", 100));
+    }
+
+    @Test
+    void clampsEndToContent() {
+        assertEquals(new ByteRange(50, 99), ByteRange.parse("bytes=50-1000", 100));
+    }
+
+    @Test
+    void toleratesWhitespace() {
+        assertEquals(new ByteRange(1, 2), ByteRange.parse("bytes= 1 - 2 ", 100));
+    }
+
+    @Test
+    void rejectsRangesOutsideContent() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 100));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-10", 0));
+    }
+
+    @Test
+    void ignoresUnsupportedHeaders() {
+        assertNull(ByteRange.parse("items=0-10", 100));
+        assertNull(ByteRange.parse("bytes=0-10,20-30", 100));
+        assertNull(ByteRange.parse("bytes=10", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+
+    @Test
+    void ignoresInvalidRanges() {
+        assertNull(ByteRange.parse("bytes=20-10", 100));
+        assertNull(ByteRange.parse("bytes=200-150", 100));
+    }
+}
@@ -0,0 +1,55 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CompressionCacheTest {
+    private static final String CONTENT = "compressible ".repeat(10_000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void buildsVariantOfMatchingContent() throws IOException {
+        final Path file = Files.writeString(dir.resolve("file.jar"), CONTENT);
+        final HashCode checksum = FileChecksumValidator.computeChecksumFor(file);
+        final CompressionCache cache = new CompressionCache(dir.resolve("cache"), Long.MAX_VALUE);
+
+        cache.update(Map.of(checksum, file)).join();
+
+        final Path variant = cache.findVariant(checksum);
+        assertNotNull(variant);
+        try (final InputStream input = new GZIPInputStream(Files.newInputStream(variant))) {
+            assertArrayEquals(Files.readAllBytes(file), input.readAllBytes());
+        }
+    }
+
+    @Test
+    void skipsFileThatChangedSinceItWasHashed() throws IOException {
+        final Path file = Files.writeString(dir.resolve("file.jar"), CONTENT);
+        final HashCode checksum = FileChecksumValidator.computeChecksumFor(file);
+        Files.writeString(file, CONTENT + "changed");
+        final CompressionCache cache = new CompressionCache(dir.resolve("cache"), Long.MAX_VALUE);
+
+        cache.update(Map.of(checksum, file)).join();
+        assertNull(cache.findVariant(checksum));
+
+        // Not remembered as incompressible, so it is tried again once the content matches
+        Files.writeString(file, CONTENT);
+        cache.update(Map.of(checksum, file)).join();
+        assertNotNull(cache.findVariant(checksum));
+    }
+}
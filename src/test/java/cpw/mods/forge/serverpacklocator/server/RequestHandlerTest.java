@@ -0,0 +1,278 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.common.hash.HashCode;
+import cpw.mods.forge.serverpacklocator.BundleFormat;
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.PackEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestHandlerTest {
+    @TempDir
+    Path dir;
+
+    private ServerFileManager fileManager;
+    private final List<PackEntry> entries = new ArrayList<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Map<HashCode, byte[]> contents = new LinkedHashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileManager = new ServerFileManager(dir.resolve("servermanifest.json"), ChecksumCache.load(dir.resolve("checksumcache.json")), null, null, null, new ServerMetrics());
+        for (int i = 0; i < 3; i++) {
+            final String name = "mod" + i + ".jar";
+            final Path path = Files.writeString(dir.resolve(name), ("content of " + name + "\n").repeat(1000 * (i + 1)));
+            entries.add(new PackEntry(path, name, null));
+        }
+        fileManager.buildManifest(entries);
+        for (final ServerFileManager.PackFile file : fileManager.getSnapshot().filesByName().values()) {
+            contents.put(file.data().checksum(), Files.readAllBytes(file.path()));
+        }
+    }
+
+    @Test
+    void bundleOpensFilesOnlyWhenSent() throws IOException {
+        final EmbeddedChannel channel = channel(TransferLimiter.Limits.UNLIMITED);
+        channel.writeInbound(bundleRequest());
+
+        final HttpResponse response = channel.readOutbound();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final WritableByteChannel target = Channels.newChannel(body);
+        Object message;
+        while ((message = channel.readOutbound()) != null) {
+            if (message instanceof final DefaultFileRegion region) {
+                assertFalse(region.isOpen(), "file was opened before its turn");
+                while (region.transferred() < region.count()) {
+                    region.transferTo(target, region.transferred());
+                }
+            } else {
+                body.writeBytes(contentOf(message));
+            }
+            ReferenceCountUtil.release(message);
+        }
+
+        assertBundle(response, body.toByteArray());
+    }
+
+    @Test
+    void bundleStreamsChunksWhenShaping() {
+        final EmbeddedChannel channel = channel(new TransferLimiter.Limits(1L << 30, 0, 0, 5));
+        channel.writeInbound(bundleRequest());
+
+        final HttpResponse response = channel.readOutbound();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Object message;
+        while ((message = channel.readOutbound()) != null) {
+            body.writeBytes(contentOf(message));
+            ReferenceCountUtil.release(message);
+        }
+
+        assertBundle(response, body.toByteArray());
+    }
+
+    @Test
+    void servesRangeWhenIfRangeMatches() throws IOException {
+        final ServerFileManager.PackFile file = fileManager.getSnapshot().filesByName().get("mod0.jar");
+        final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/files/mod0.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=10-19");
+        request.headers().set(HttpHeaderNames.IF_RANGE, "\"" + file.data().checksum() + "\"");
+
+        final Reply reply = get(request);
+
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, reply.response().status());
+        assertEquals("bytes 10-19/" + file.data().size(), reply.response().headers().get(HttpHeaderNames.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(Files.readAllBytes(file.path()), 10, 20), reply.body());
+    }
+
+    @Test
+    void servesWholeFileWhenIfRangeDoesNotMatch() throws IOException {
+        final ServerFileManager.PackFile file = fileManager.getSnapshot().filesByName().get("mod0.jar");
+        final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/files/mod0.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=10-19");
+        // An older version of the file, which the client must not resume on top of
+        request.headers().set(HttpHeaderNames.IF_RANGE, "\"" + HashCode.fromBytes(new byte[32]) + "\"");
+
+        final Reply reply = get(request);
+
+        assertEquals(HttpResponseStatus.OK, reply.response().status());
+        assertArrayEquals(Files.readAllBytes(file.path()), reply.body());
+    }
+
+    @Test
+    void rejectsRangeOutsideFile() {
+        final ServerFileManager.PackFile file = fileManager.getSnapshot().filesByName().get("mod0.jar");
+        final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/files/mod0.jar");
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=" + file.data().size() + "-");
+
+        final EmbeddedChannel channel = channel(TransferLimiter.Limits.UNLIMITED);
+        channel.writeInbound(request);
+        final HttpResponse response = channel.readOutbound();
+
+        assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status());
+        assertEquals("bytes */" + file.data().size(), response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        ReferenceCountUtil.release(response);
+    }
+
+    @Test
+    void servesFileByHash() throws IOException {
+        final ServerFileManager.PackFile file = fileManager.getSnapshot().filesByName().get("mod1.jar");
+
+        final Reply reply = get(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/files/by-hash/" + file.data().checksum()));
+
+        assertEquals(HttpResponseStatus.OK, reply.response().status());
+        assertEquals(RequestHandler.FILE_BY_HASH_CACHE_CONTROL, reply.response().headers().get(HttpHeaderNames.CACHE_CONTROL));
+        assertArrayEquals(contents.get(file.data().checksum()), reply.body());
+    }
+
+    @Test
+    void refusesFileByHashOverwrittenInPlace() throws IOException {
+        final ServerFileManager.PackFile file = fileManager.getSnapshot().filesByName().get("mod1.jar");
+        Files.writeString(file.path(), "new content");
+
+        final Reply reply = get(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/files/by-hash/" + file.data().checksum()));
+
+        assertEquals(HttpResponseStatus.NOT_FOUND, reply.response().status());
+    }
+
+    @Test
+    void limitsChunkIndexTransfers() throws IOException {
+        final TransferLimiter limiter = new TransferLimiter(new TransferLimiter.Limits(0, 0, 1, 5));
+        final String index = withChunkIndex("mod0.jar");
+
+        assertTrue(limiter.tryAcquire());
+        final Reply busy = get(channel(limiter), new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/chunks/mod0.jar"));
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, busy.response().status());
+
+        limiter.release();
+        final Reply reply = get(channel(limiter), new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/chunks/mod0.jar"));
+        assertEquals(HttpResponseStatus.OK, reply.response().status());
+        assertEquals(index, new String(reply.body(), StandardCharsets.UTF_8));
+        assertEquals(0, limiter.activeTransfers());
+    }
+
+    @Test
+    void countsChunkIndexesApartFromFileContent() throws IOException {
+        final String index = withChunkIndex("mod0.jar");
+
+        get(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/chunks/mod0.jar"));
+
+        final String rendered = metrics.render();
+        assertTrue(rendered.contains("serverpacklocator_chunk_index_bytes_served_total " + index.length() + "\n"), rendered);
+        assertFalse(rendered.contains("file=\"mod0.jar\""), rendered);
+    }
+
+    /**
+     * @return the content of the index
+     */
+    private String withChunkIndex(final String fileName) throws IOException {
+        final Path chunksDirectory = Files.createDirectories(dir.resolve("chunks"));
+        final HashCode checksum = fileManager.getSnapshot().filesByName().get(fileName).data().checksum();
+        // The cache picks up indexes already on disk, so there is no need to wait for it to build one
+        final String index = "{\"chunks\":[]}";
+        Files.writeString(chunksDirectory.resolve(checksum + ".json"), index);
+        fileManager = new ServerFileManager(dir.resolve("servermanifest.json"), ChecksumCache.load(dir.resolve("checksumcache.json")), null, new ChunkIndexCache(chunksDirectory), null, new ServerMetrics());
+        fileManager.buildManifest(entries);
+        return index;
+    }
+
+    private Reply get(final FullHttpRequest request) throws IOException {
+        return get(channel(TransferLimiter.Limits.UNLIMITED), request);
+    }
+
+    private Reply get(final EmbeddedChannel channel, final FullHttpRequest request) throws IOException {
+        channel.writeInbound(request);
+
+        final HttpResponse response = channel.readOutbound();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final WritableByteChannel target = Channels.newChannel(body);
+        Object message;
+        while ((message = channel.readOutbound()) != null) {
+            if (message instanceof final DefaultFileRegion region) {
+                while (region.transferred() < region.count()) {
+                    region.transferTo(target, region.transferred());
+                }
+            } else {
+                body.writeBytes(contentOf(message));
+            }
+            ReferenceCountUtil.release(message);
+        }
+        return new Reply(response, body.toByteArray());
+    }
+
+    private EmbeddedChannel channel(final TransferLimiter.Limits limits) {
+        return channel(new TransferLimiter(limits));
+    }
+
+    private EmbeddedChannel channel(final TransferLimiter limiter) {
+        return new EmbeddedChannel(new ChunkedWriteHandler(), new RequestHandler(fileManager, metrics, limiter, null));
+    }
+
+    private DefaultFullHttpRequest bundleRequest() {
+        final String body = contents.keySet().stream().map(HashCode::toString).collect(Collectors.joining("\n"));
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, BundleFormat.PATH, Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+    }
+
+    private void assertBundle(final HttpResponse response, final byte[] body) {
+        assertEquals(HttpResponseStatus.OK, response.status());
+        assertEquals(body.length, HttpUtil.getContentLength(response));
+
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final Map<HashCode, byte[]> received = new LinkedHashMap<>();
+        while (buffer.hasRemaining()) {
+            final byte[] checksum = new byte[BundleFormat.CHECKSUM_BYTES];
+            buffer.get(checksum);
+            final byte[] content = new byte[Math.toIntExact(buffer.getLong())];
+            buffer.get(content);
+            received.put(HashCode.fromBytes(checksum), content);
+        }
+        assertEquals(contents.keySet(), received.keySet());
+        contents.forEach((checksum, content) -> assertArrayEquals(content, received.get(checksum)));
+    }
+
+    private record Reply(HttpResponse response, byte[] body) {
+    }
+
+    private static byte[] contentOf(final Object message) {
+        final ByteBuf content = message instanceof final HttpContent httpContent ? httpContent.content() : assertInstanceOf(ByteBuf.class, message);
+        final byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+        return bytes;
+    }
+}
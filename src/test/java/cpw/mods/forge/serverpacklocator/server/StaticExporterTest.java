@@ -0,0 +1,126 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.ChecksumCache;
+import cpw.mods.forge.serverpacklocator.PackEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StaticExporterTest {
+    @TempDir
+    Path dir;
+
+    private Path modsDirectory;
+    private Path exportDirectory;
+    private ServerFileManager fileManager;
+    private StaticExporter exporter;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        modsDirectory = Files.createDirectory(dir.resolve("mods"));
+        exportDirectory = dir.resolve("export");
+        fileManager = new ServerFileManager(modsDirectory.resolve("servermanifest.json"), ChecksumCache.load(modsDirectory.resolve("checksumcache.json")), null, null, null, new ServerMetrics());
+        exporter = new StaticExporter(exportDirectory, false);
+    }
+
+    @Test
+    void exportsManifestAndFiles() throws IOException {
+        final ServerFileManager.Snapshot snapshot = export(file("first.jar", "first"), file("second mod.jar", "second"));
+
+        assertEquals(snapshot.json(), Files.readString(exportDirectory.resolve("servermanifest.json"), StandardCharsets.UTF_8));
+        for (final ServerFileManager.PackFile file : snapshot.filesByName().values()) {
+            final byte[] content = Files.readAllBytes(file.path());
+            assertArrayEquals(content, Files.readAllBytes(exportDirectory.resolve("files").resolve(file.data().fileName())));
+            assertArrayEquals(content, Files.readAllBytes(exportDirectory.resolve("files/by-hash").resolve(file.data().checksum().toString())));
+        }
+    }
+
+    @Test
+    void onlyMarksFilesByHashAsImmutable() throws IOException {
+        export(file("first.jar", "first"), file("second mod.jar", "second"));
+
+        final String headers = Files.readString(exportDirectory.resolve("_headers"), StandardCharsets.UTF_8);
+        assertEquals("""
+                /servermanifest.json
+                  Cache-Control: %s
+                /files/by-hash/*
+                  Cache-Control: %s
+                /files/first.jar
+                  Cache-Control: %s
+                /files/second%%20mod.jar
+                  Cache-Control: %s
+                """.formatted(RequestHandler.MANIFEST_CACHE_CONTROL, RequestHandler.FILE_BY_HASH_CACHE_CONTROL, RequestHandler.FILE_BY_NAME_CACHE_CONTROL, RequestHandler.FILE_BY_NAME_CACHE_CONTROL), headers);
+
+        final String nginx = Files.readString(exportDirectory.resolve("nginx.conf"), StandardCharsets.UTF_8);
+        assertTrue(nginx.contains("location /files/ {\n    types { }\n    default_type application/octet-stream;\n    add_header Cache-Control \"" + RequestHandler.FILE_BY_NAME_CACHE_CONTROL + "\";"));
+        assertTrue(nginx.contains("location /files/by-hash/ {\n    types { }\n    default_type application/octet-stream;\n    add_header Cache-Control \"" + RequestHandler.FILE_BY_HASH_CACHE_CONTROL + "\";"));
+    }
+
+    @Test
+    void keepsRemovedFilesForOneMoreExport() throws IOException {
+        final PackEntry kept = file("kept.jar", "kept");
+        final ServerFileManager.Snapshot first = export(kept, file("removed.jar", "removed"));
+        final Path removedByHash = exportDirectory.resolve("files/by-hash").resolve(first.filesByName().get("removed.jar").data().checksum().toString());
+
+        export(kept);
+        assertTrue(Files.exists(exportDirectory.resolve("files/removed.jar")));
+        assertTrue(Files.exists(removedByHash));
+
+        export(kept);
+        assertFalse(Files.exists(exportDirectory.resolve("files/removed.jar")));
+        assertFalse(Files.exists(removedByHash));
+        assertTrue(Files.exists(exportDirectory.resolve("files/kept.jar")));
+    }
+
+    @Test
+    void copiesFilesByHashEvenWhenLinking() throws IOException {
+        exporter = new StaticExporter(exportDirectory, true);
+        final ServerFileManager.Snapshot snapshot = export(file("first.jar", "first"));
+        final ServerFileManager.PackFile file = snapshot.filesByName().get("first.jar");
+
+        final Path byHash = exportDirectory.resolve("files/by-hash").resolve(file.data().checksum().toString());
+        assertFalse(Files.isSameFile(file.path(), byHash));
+        // Overwriting the source in place must not change what is served as immutable
+        Files.writeString(file.path(), "overwritten", StandardCharsets.UTF_8);
+        assertEquals("first", Files.readString(byHash, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void keepsPreviousManifestWhenFileChangedSinceHashing() throws IOException {
+        final ServerFileManager.Snapshot first = export(file("first.jar", "first"));
+        fileManager.buildManifest(new ArrayList<>(List.of(file("second.jar", "second"))));
+        final ServerFileManager.Snapshot second = fileManager.getSnapshot();
+        final ServerFileManager.PackFile changed = second.filesByName().get("second.jar");
+        Files.writeString(changed.path(), "overwritten", StandardCharsets.UTF_8);
+
+        exporter.update(second, null, CompletableFuture.completedFuture(null)).join();
+
+        assertEquals(first.json(), Files.readString(exportDirectory.resolve("servermanifest.json"), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(exportDirectory.resolve("files/by-hash").resolve(changed.data().checksum().toString())));
+    }
+
+    private ServerFileManager.Snapshot export(final PackEntry... files) {
+        fileManager.buildManifest(new ArrayList<>(List.of(files)));
+        final ServerFileManager.Snapshot snapshot = fileManager.getSnapshot();
+        exporter.update(snapshot, null, CompletableFuture.completedFuture(null)).join();
+        return snapshot;
+    }
+
+    private PackEntry file(final String name, final String content) throws IOException {
+        final Path path = Files.writeString(modsDirectory.resolve(name), content, StandardCharsets.UTF_8);
+        return new PackEntry(path, name, null);
+    }
+}